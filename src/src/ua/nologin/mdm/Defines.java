@@ -1,5 +1,7 @@
 package ua.nologin.mdm;
 
+import ua.nologin.mdm.converters.CSVSaver;
+
 /**
  * Created by Iaroslav Omelianenko on 8/14/15.
  */
@@ -8,4 +10,8 @@ public interface Defines {
     public static int NAME_INDEX = 1;
     public static int ADDR_INDEX = 2;
     public static int TAXONOM_INDEX = 3;
+
+    // The default types of data set fields in order of indices above
+    public static CSVSaver.FieldType[] DATA_SET_SCHEMA = {CSVSaver.FieldType.INT, CSVSaver.FieldType.STRING,
+            CSVSaver.FieldType.STRING, CSVSaver.FieldType.STRING};
 }
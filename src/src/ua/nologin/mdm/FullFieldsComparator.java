@@ -2,12 +2,16 @@ package ua.nologin.mdm;/**
  * Created by yaric on 8/19/15.
  */
 
-import com.aliasi.spell.JaroWinklerDistance;
-import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import ua.nologin.mdm.address.USAddressParser;
+import ua.nologin.mdm.blocking.MinHashLSH;
+import ua.nologin.mdm.blocking.QGramIndex;
+import ua.nologin.mdm.converters.CSVLoader;
 import ua.nologin.mdm.converters.CSVSaver;
+import ua.nologin.mdm.model.PairMatrix;
+import ua.nologin.mdm.model.PairScoreMap;
+import ua.nologin.mdm.model.SimilarityGraph;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,11 +33,17 @@ public class FullFieldsComparator {
 
     private final double fullThreshold;
     private final double addrThreshold;
+    // The minimal names proximity of candidates without names matrix
+    private double namesThreshold;
 
     private Logger logger = Logger.getLogger("ua.nologin.mdm");
 
     // The string proximity calculator
-    static JaroWinklerDistance distance = JaroWinklerDistance.JARO_DISTANCE;
+    static JaroWinkler distance = JaroWinkler.JARO;
+    // The names proximity calculator for candidates without names matrix
+    static JaroWinkler namesDistance = JaroWinkler.JARO_WINKLER;
+    // The length of names q-grams hashed to find candidates
+    static final int CANDIDATES_QGRAM_SIZE = 3;
 
     public FullFieldsComparator(double fullThreshold, double addrThreshold) {
         this.fullThreshold = fullThreshold;
@@ -53,51 +63,155 @@ public class FullFieldsComparator {
     }
 
     public void compareRecords(File input, File namesMatrix, File addrMatrix, File results) throws IOException, ClassNotFoundException {
-        List<List<Object>> dataSet = UtilsIO.loadCSVAsDataSet(input);
-        Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByNames = UtilsIO.loadMatrix(namesMatrix);
-        Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByAddr = UtilsIO.loadMatrix(addrMatrix);
+        TreeMap<Integer, List<Object>> dataMap = this.loadDataMap(input);
+        SimilarityGraph nerMatrixByNames = UtilsIO.loadGraph(namesMatrix);
+        SimilarityGraph nerMatrixByAddr = UtilsIO.loadGraph(addrMatrix);
 
-        List<List<Object>> records = this.compareRecords(dataSet, nerMatrixByNames, nerMatrixByAddr);
+        List<List<Object>> records = this.compareRecords(dataMap, nerMatrixByNames, nerMatrixByAddr);
 
         CSVSaver.FieldType[] types = {CSVSaver.FieldType.INT, CSVSaver.FieldType.INT, CSVSaver.FieldType.DOUBLE};
         UtilsIO.saveCSVDataSet(records, types, results);
     }
 
     public void compareRecords(File input, File namesMatrix, File results) throws IOException, ClassNotFoundException {
-        List<List<Object>> dataSet = UtilsIO.loadCSVAsDataSet(input);
-        Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByNames = UtilsIO.loadMatrix(namesMatrix);
+        TreeMap<Integer, List<Object>> dataMap = this.loadDataMap(input);
+        SimilarityGraph nerMatrixByNames = UtilsIO.loadGraph(namesMatrix);
 
-        List<List<Object>> records = this.compareRecords(dataSet, nerMatrixByNames);
+        List<List<Object>> records = this.compareRecords(dataMap, nerMatrixByNames, (HashMap<Integer, String>) null);
 
         CSVSaver.FieldType[] types = {CSVSaver.FieldType.INT, CSVSaver.FieldType.INT, CSVSaver.FieldType.DOUBLE};
         UtilsIO.saveCSVDataSet(records, types, results);
     }
 
-    public List<List<Object>> compareRecords(List<List<Object>> dataSet, Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByNames) {
-        // convert data set into map keyed by record ID
+    public List<List<Object>> compareRecords(List<List<Object>> dataSet, PairScoreMap nerMatrixByNames) {
+        return this.compareRecords(this.toDataMap(dataSet), SimilarityGraph.build(nerMatrixByNames),
+                (HashMap<Integer, String>) null);
+    }
+
+    /**
+     * Compares records which are candidate pairs found by MinHash LSH over q-grams of names and tokens of
+     * taxonomies instead of names matrix. The names are taken from the output of names recognition, which is the
+     * input of names comparator, so candidates and names proximity are calculated over the same cleaned names as
+     * names matrix. The names proximity of candidates is calculated on the fly and pairs with names proximity
+     * below threshold are skipped, as names comparator does. The records without recognized name are not compared.
+     *
+     * @param input          the input file with data set
+     * @param names          the file with recognized names of records in binary or CSV format
+     * @param lsh            the LSH to find candidate pairs
+     * @param namesThreshold the minimal names proximity of compared records
+     * @param results        the output file to store found duplicates
+     * @throws IOException if failed to read data set or to write results
+     */
+    public void compareRecords(File input, File names, MinHashLSH lsh, double namesThreshold, File results)
+            throws IOException {
+        TreeMap<Integer, List<Object>> dataMap = this.loadDataMap(input);
+        HashMap<Integer, String> namesMap = this.toNamesMap(UtilsIO.loadDataSet(names, ID_INDEX, NAME_INDEX));
+
+        this.namesThreshold = namesThreshold;
+        List<List<Object>> records = this.compareRecords(dataMap, this.findCandidates(dataMap, namesMap, lsh),
+                namesMap);
+
+        CSVSaver.FieldType[] types = {CSVSaver.FieldType.INT, CSVSaver.FieldType.INT, CSVSaver.FieldType.DOUBLE};
+        UtilsIO.saveCSVDataSet(records, types, results);
+    }
+
+    public List<List<Object>> compareRecords(List<List<Object>> dataSet, List<List<Object>> names, MinHashLSH lsh,
+                                             double namesThreshold) {
+        TreeMap<Integer, List<Object>> dataMap = this.toDataMap(dataSet);
+        HashMap<Integer, String> namesMap = this.toNamesMap(names);
+        this.namesThreshold = namesThreshold;
+        return this.compareRecords(dataMap, this.findCandidates(dataMap, namesMap, lsh), namesMap);
+    }
+
+    // returns candidate pairs of records IDs with colliding signatures of recognized names and taxonomies
+    private SimilarityGraph findCandidates(TreeMap<Integer, List<Object>> dataMap, HashMap<Integer, String> names,
+                                           MinHashLSH lsh) {
+        int size = dataMap.size();
+        int[] ids = new int[size];
+        long[][] features = new long[size][];
+        int i = 0;
+        for (Map.Entry<Integer, List<Object>> entry : dataMap.entrySet()) {
+            String name = names.get(entry.getKey());
+            if (name == null) {
+                // the empty set has no candidates
+                features[i] = new long[0];
+            } else {
+                long[] grams = QGramIndex.grams(name, CANDIDATES_QGRAM_SIZE);
+                long[] tokens = MinHashLSH.tokens(filterNoise((String) entry.getValue().get(TAXONOM_INDEX)), 3);
+                features[i] = Arrays.copyOf(grams, grams.length + tokens.length);
+                System.arraycopy(tokens, 0, features[i], grams.length, tokens.length);
+            }
+            ids[i++] = entry.getKey();
+        }
+        PairMatrix pairs = lsh.candidates(lsh.signatures(features));
+        PairMatrix candidates = new PairMatrix(pairs.size());
+        for (int p = 0; p < pairs.size(); p++) {
+            candidates.add(ids[pairs.getLeft(p)], ids[pairs.getRight(p)], pairs.getScore(p));
+        }
+        System.out.printf("Found %d candidate pairs by LSH\n", candidates.size());
+        return SimilarityGraph.build(candidates);
+    }
+
+    // convert data set of recognized names into map of names keyed by record ID
+    private HashMap<Integer, String> toNamesMap(List<List<Object>> names) {
+        HashMap<Integer, String> namesMap = new HashMap<>(names.size() * 2);
+        for (List<Object> row : names) {
+            namesMap.put(((Number) row.get(ID_INDEX)).intValue(), (String) row.get(NAME_INDEX));
+        }
+        return namesMap;
+    }
+
+    /**
+     * Reads records from specified CSV file row by row directly into map keyed by record ID, without intermediate
+     * materialization of the whole data set as list.
+     *
+     * @param input the input file with CSV data set
+     * @return the map of records keyed by record ID
+     * @throws IOException if failed to read data set
+     */
+    private TreeMap<Integer, List<Object>> loadDataMap(File input) throws IOException {
+        TreeMap<Integer, List<Object>> dataMap = new TreeMap<>();
+        try (CSVLoader loader = UtilsIO.openCSVDataSet(input)) {
+            List<Object> row;
+            while ((row = loader.getNextRow()) != null) {
+                Integer id = ((Number) row.get(ID_INDEX)).intValue();
+                dataMap.put(id, row);
+            }
+        }
+        System.out.printf("Loaded data set with %d rows\n", dataMap.size());
+        return dataMap;
+    }
+
+    // convert data set into map keyed by record ID
+    private TreeMap<Integer, List<Object>> toDataMap(List<List<Object>> dataSet) {
         TreeMap<Integer, List<Object>> dataMap = new TreeMap<>();
         for (List<Object> row : dataSet) {
-            Integer id = ((Double) row.get(ID_INDEX)).intValue();
+            Integer id = ((Number) row.get(ID_INDEX)).intValue();
             dataMap.put(id, row);
         }
+        return dataMap;
+    }
 
+    // compares candidate pairs of names graph, the names proximity is calculated if recognized names are given
+    private List<List<Object>> compareRecords(TreeMap<Integer, List<Object>> dataMap, SimilarityGraph nerMatrixByNames,
+                                              HashMap<Integer, String> names) {
         System.out.println("Starting full fields compare +++++++++++++");
+        if (nerMatrixByNames.getEdgesCount() == 0) {
+            return new ArrayList<>();
+        }
         // do processing by NAME
         int splitFactor = 20;
-        // get NER keys sorted
-        Set<ImmutablePair<Integer, Integer>> keySet = nerMatrixByNames.keySet();
-        ArrayList<ImmutablePair<Integer, Integer>> nerKeys = new ArrayList<>(keySet);
-        nerKeys.sort(new NerKeysComparator());
-        keySet = null;
-
-        ImmutablePair<Integer, Integer> lastKey = nerKeys.get(nerKeys.size() - 1);
-        System.out.printf("Last NER pair: %d : %d\n", lastKey.left, lastKey.right);
-
-        int size = nerMatrixByNames.size();
-        FullRecordsCompareByNameTask nameTask = new FullRecordsCompareByNameTask(dataMap, nerMatrixByNames, nerKeys,
-                0, size, size / splitFactor);
+        int lastId = nerMatrixByNames.getLastId();
+        System.out.printf("Last NER pair: %d : %d\n", lastId, nerMatrixByNames.getNeighbor(nerMatrixByNames.end(lastId) - 1));
+
+        // the tasks process ranges of left records with all their candidates
+        int size = lastId - nerMatrixByNames.getFirstId() + 1;
+        FullRecordsCompareByNameTask nameTask = new FullRecordsCompareByNameTask(dataMap, taxonomiesTokens(dataMap),
+                nerMatrixByNames, names, nerMatrixByNames.getFirstId(), size, Math.max(size / splitFactor, 1));
         ForkJoinPool pool = new ForkJoinPool();
-        TreeMap<ImmutablePair<Integer, Integer>, Double> resultByName = pool.invoke(nameTask);
+        // the tasks results are sorted runs of consecutive left records ranges
+        PairMatrix resultByName = PairMatrix.merge(pool.invoke(nameTask));
+        pool.shutdown();
 
 
         // filter results by removing excesses
@@ -111,102 +225,95 @@ public class FullFieldsComparator {
         return resultSet;
     }
 
-    private ArrayList<List<Object>> filteredRecords(TreeMap<ImmutablePair<Integer, Integer>, Double> resultsMap,
-                                                    TreeMap<Integer, List<Object>> dataMap) {
-        ArrayList<List<Object>>resultSet = new ArrayList<>(resultsMap.size());
-        ImmutablePair<Integer, Integer> prevKey = resultsMap.navigableKeySet().first();
-        ArrayList<ImmutablePair<Integer, Integer>>keys = new ArrayList<>();
+    private ArrayList<List<Object>> filteredRecords(PairMatrix results, TreeMap<Integer, List<Object>> dataMap) {
+        ArrayList<List<Object>>resultSet = new ArrayList<>(results.size());
+        SimilarityGraph graph = SimilarityGraph.build(results);
+        // The left record of previous group of pairs and the number of its pairs counted
+        int prevLeft = -1;
         int count = 0;
-        for (ImmutablePair<Integer, Integer> key : resultsMap.navigableKeySet()) {
-            if (Objects.equals(prevKey.left, key.left)) {
-                count++;
-            } else {
+        for (int left = graph.getFirstId(); left <= graph.getLastId(); left++) {
+            int degree = graph.degree(left);
+            if (degree == 0) {
+                continue;
+            }
+            if (prevLeft != -1) {
                 if (count <= 3) {
-                    this.addAll(keys, resultSet, resultsMap, dataMap);
+                    this.addAll(graph, prevLeft, resultSet, dataMap);
                 }
-                keys = new ArrayList<>();
-                count = 0;
-                prevKey = key;
+                // the first pair of each next group is not counted
+                count = degree - 1;
+            } else {
+                count = degree;
             }
-            // store key
-            keys.add(key);
-
+            prevLeft = left;
         }
         return resultSet;
     }
 
-    private void addAll(ArrayList<ImmutablePair<Integer, Integer>>keys, ArrayList<List<Object>>resultSet,
-                        TreeMap<ImmutablePair<Integer, Integer>, Double> resultsMap,
+    private void addAll(SimilarityGraph results, int left, ArrayList<List<Object>>resultSet,
                         TreeMap<Integer, List<Object>> dataMap) {
-        List<Object> firstRecord, secRecord;
-        for (ImmutablePair<Integer, Integer> key : keys) {
-            resultSet.add(Arrays.asList(Double.valueOf(key.left), Double.valueOf(key.right), resultsMap.get(key)));
-            firstRecord = dataMap.get(key.left);
-            secRecord = dataMap.get(key.right);
+        List<Object> firstRecord = dataMap.get(left), secRecord;
+        for (int edge = results.start(left); edge < results.end(left); edge++) {
+            int right = results.getNeighbor(edge);
+            resultSet.add(Arrays.asList(Double.valueOf(left), Double.valueOf(right), results.getScore(edge)));
+            secRecord = dataMap.get(right);
             logger.info(String.format("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
                     firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
                     secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX)));
         }
     }
 
-    public List<List<Object>> compareRecords(List<List<Object>> dataSet, Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByNames,
-                                             Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByAddr) {
-        // convert data set into map keyed by record ID
-        TreeMap<Integer, List<Object>> dataMap = new TreeMap<>();
-        for (List<Object> row : dataSet) {
-            Integer id = ((Double) row.get(ID_INDEX)).intValue();
-            dataMap.put(id, row);
-        }
+    public List<List<Object>> compareRecords(List<List<Object>> dataSet, PairScoreMap nerMatrixByNames,
+                                             PairScoreMap nerMatrixByAddr) {
+        return this.compareRecords(this.toDataMap(dataSet), SimilarityGraph.build(nerMatrixByNames),
+                SimilarityGraph.build(nerMatrixByAddr));
+    }
 
+    private List<List<Object>> compareRecords(TreeMap<Integer, List<Object>> dataMap, SimilarityGraph nerMatrixByNames,
+                                              SimilarityGraph nerMatrixByAddr) {
         System.out.println("Starting full fields compare +++++++++++++");
         // do processing by NAME
         int splitFactor = 20;
-        // get NER keys sorted
-        Set<ImmutablePair<Integer, Integer>> keySet = nerMatrixByNames.keySet();
-        ArrayList<ImmutablePair<Integer, Integer>> nerKeys = new ArrayList<>(keySet);
-        nerKeys.sort(new NerKeysComparator());
-        keySet = null;
-
-        ImmutablePair<Integer, Integer> lastKey = nerKeys.get(nerKeys.size() - 1);
-        System.out.printf("Last NER pair: %d : %d\n", lastKey.left, lastKey.right);
-
-        int size = nerMatrixByNames.size();
-        FullRecordsCompareByNameTask nameTask = new FullRecordsCompareByNameTask(dataMap, nerMatrixByNames, nerKeys,
-                0, size, size / splitFactor);
+        int lastId = nerMatrixByNames.getLastId();
+        System.out.printf("Last NER pair: %d : %d\n", lastId, nerMatrixByNames.getNeighbor(nerMatrixByNames.end(lastId) - 1));
+
+        // the tasks process ranges of left records with all their candidates
+        int size = lastId - nerMatrixByNames.getFirstId() + 1;
+        HashMap<Integer, String[]> taxonomies = taxonomiesTokens(dataMap);
+        FullRecordsCompareByNameTask nameTask = new FullRecordsCompareByNameTask(dataMap, taxonomies,
+                nerMatrixByNames, null, nerMatrixByNames.getFirstId(), size, Math.max(size / splitFactor, 1));
         ForkJoinPool pool = new ForkJoinPool();
-        TreeMap<ImmutablePair<Integer, Integer>, Double> resultByName = pool.invoke(nameTask);
+        // the tasks results are sorted runs of consecutive left records ranges
+        PairMatrix resultByName = PairMatrix.merge(pool.invoke(nameTask));
 
         System.out.printf("Found %d duplicate records by NAME\n", resultByName.size());
 
         // release resources
         nerMatrixByNames = null;
-        nerKeys = null;
 
         // do processing by ADDRESS
-        keySet = nerMatrixByAddr.keySet();
-        nerKeys = new ArrayList<>(keySet);
-        nerKeys.sort(new NerKeysComparator());
-        keySet = null;
-
-        size = nerMatrixByAddr.size();
-        FullRecordsCompareByAddressTask addrTask = new FullRecordsCompareByAddressTask(dataMap, nerMatrixByAddr, nerKeys, 0,
-                size, size / splitFactor);
-        TreeMap<ImmutablePair<Integer, Integer>, Double> resultByAddr = pool.invoke(addrTask);
+        size = nerMatrixByAddr.getLastId() - nerMatrixByAddr.getFirstId() + 1;
+        FullRecordsCompareByAddressTask addrTask = new FullRecordsCompareByAddressTask(dataMap, taxonomies,
+                nerMatrixByAddr, nerMatrixByAddr.getFirstId(), size, Math.max(size / splitFactor, 1));
+        PairMatrix resultByAddr = PairMatrix.merge(pool.invoke(addrTask));
 
         System.out.printf("Found %d duplicate records by ADDRESS\n", resultByAddr.size());
 
         // release resources
         nerMatrixByAddr = null;
-        nerKeys = null;
 
-        // merge collected
-        for (ImmutablePair<Integer, Integer> key : resultByAddr.navigableKeySet()) {
-            if (!resultByName.containsKey(key)) {
+        // merge collected, both results are sorted so pairs found only by address are merged in linear time
+        PairMatrix addrOnly = new PairMatrix();
+        int nameSize = resultByName.size();
+        for (int i = 0; i < resultByAddr.size(); i++) {
+            long key = resultByAddr.getKey(i);
+            if (resultByName.binarySearch(key, 0, nameSize) < 0) {
                 // add object
-                resultByName.put(key, resultByAddr.get(key));
+                addrOnly.add(key, resultByAddr.getScore(i));
             }
         }
         resultByAddr = null;
+        resultByName = PairMatrix.merge(Arrays.asList(resultByName, addrOnly));
 
         ArrayList<List<Object>>resultSet = this.filteredRecords(resultByName, dataMap);
 
@@ -220,27 +327,31 @@ public class FullFieldsComparator {
     }
 
     // Task to recursively compare records by name fields using Fork-Join thread
-    class FullRecordsCompareByNameTask extends RecursiveTask<TreeMap<ImmutablePair<Integer, Integer>, Double>> {
+    class FullRecordsCompareByNameTask extends RecursiveTask<List<PairMatrix>> {
         // The RAW records
         private final TreeMap<Integer, List<Object>> dataMap;
-        // The sorted NER keys
-        private final ArrayList<ImmutablePair<Integer, Integer>> sortedNamesNerKeys;
+        // The tokens of taxonomies of records
+        private final HashMap<Integer, String[]> taxonomies;
         // The NER results matrix
-        private final Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByNames;
+        private final SimilarityGraph nerMatrixByNames;
+        // The recognized names of records to calculate names proximity, null if it is taken from matrix
+        private final HashMap<Integer, String> names;
 
-        // The start index (inclusive)
+        // The first left record ID (inclusive)
         private final int start;
-        // The length of data train to process
+        // The number of left records to process
         private final int lenght;
         // The minimal size of one chunk
         private final int chunkSize;
 
 
-        public FullRecordsCompareByNameTask(TreeMap<Integer, List<Object>> dataMap, Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByNames,
-                                            ArrayList<ImmutablePair<Integer, Integer>> sortedNamesNerKeys, int start, int lenght, int chunkSize) {
+        public FullRecordsCompareByNameTask(TreeMap<Integer, List<Object>> dataMap,
+                                            HashMap<Integer, String[]> taxonomies, SimilarityGraph nerMatrixByNames,
+                                            HashMap<Integer, String> names, int start, int lenght, int chunkSize) {
             this.dataMap = dataMap;
+            this.taxonomies = taxonomies;
             this.nerMatrixByNames = nerMatrixByNames;
-            this.sortedNamesNerKeys = sortedNamesNerKeys;
+            this.names = names;
             this.start = start;
             this.lenght = lenght;
             this.chunkSize = chunkSize;
@@ -248,9 +359,9 @@ public class FullFieldsComparator {
 
 
         @Override
-        protected TreeMap<ImmutablePair<Integer, Integer>, Double> compute() {
-            if (this.lenght < this.chunkSize) {
-                return this.computeDirect();
+        protected List<PairMatrix> compute() {
+            if (this.lenght <= this.chunkSize) {
+                return Collections.singletonList(this.computeDirect());
             }
 
             System.out.println("+++++++++++++++ Starting comparator by NAMES +++++++++++++++");
@@ -258,53 +369,68 @@ public class FullFieldsComparator {
             // split further
             int split = this.lenght / 2;
 
-            FullRecordsCompareByNameTask[] tasks = {new FullRecordsCompareByNameTask(this.dataMap, this.nerMatrixByNames, sortedNamesNerKeys, this.start, split, this.chunkSize),
-                    new FullRecordsCompareByNameTask(this.dataMap, this.nerMatrixByNames, sortedNamesNerKeys, this.start + split, this.lenght - split, this.chunkSize)};
+            FullRecordsCompareByNameTask[] tasks = {new FullRecordsCompareByNameTask(this.dataMap, this.taxonomies, this.nerMatrixByNames, this.names, this.start, split, this.chunkSize),
+                    new FullRecordsCompareByNameTask(this.dataMap, this.taxonomies, this.nerMatrixByNames, this.names, this.start + split, this.lenght - split, this.chunkSize)};
             Collection<FullRecordsCompareByNameTask> tasksResults = invokeAll(Arrays.asList(tasks));
 
-            // merge
-            TreeMap<ImmutablePair<Integer, Integer>, Double> dataSet = new TreeMap<>(new NerKeysComparator());
+            // collect sorted runs in order of keys, they are merged once by caller
+            List<PairMatrix> runs = new ArrayList<>();
             for (FullRecordsCompareByNameTask task : tasksResults) {
                 if (task.isDone()) {
-                    dataSet.putAll(task.getRawResult());
+                    runs.addAll(task.getRawResult());
                 } else {
                     System.out.printf("Failed to get task results, reason: %s\n", task.getException());
                 }
             }
-            return dataSet;
+            return runs;
         }
 
-        private TreeMap<ImmutablePair<Integer, Integer>, Double> computeDirect() {
-            TreeMap<ImmutablePair<Integer, Integer>, Double> dataSet = new TreeMap<>(new NerKeysComparator());
+        private PairMatrix computeDirect() {
+            PairMatrix dataSet = new PairMatrix();
             int to = this.start + this.lenght;
-            List<Object> firstRecord = null, secRecord;
-            int lastLeftId = -1;
-            for (int i = this.start; i < to; i++) {
-                ImmutablePair<Integer, Integer> key = this.sortedNamesNerKeys.get(i);
-                if (lastLeftId != key.left) {
-                    // its often that first record has multiple matches
-                    firstRecord = this.dataMap.get(key.left);
-                    lastLeftId = key.left;
+            List<Object> firstRecord, secRecord;
+            for (int leftId = this.start; leftId < to; leftId++) {
+                int end = this.nerMatrixByNames.end(leftId);
+                int edge = this.nerMatrixByNames.start(leftId);
+                if (edge == end) {
+                    continue;
+                }
+                // all candidates of first record are compared in a row
+                firstRecord = this.dataMap.get(leftId);
+                String[] firstTokens = this.taxonomies.get(leftId);
+                for (; edge < end; edge++) {
+                    int rightId = this.nerMatrixByNames.getNeighbor(edge);
+                    secRecord = this.dataMap.get(rightId);
+                    double namesProb;
+                    if (this.names != null) {
+                        namesProb = namesDistance.proximityAtLeast(this.names.get(leftId), this.names.get(rightId),
+                                namesThreshold);
+                        if (namesProb < namesThreshold) {
+                            continue;
+                        }
+                    } else {
+                        namesProb = this.nerMatrixByNames.getScore(edge);
+                    }
+                    double res = this.compareRecords(firstRecord, secRecord, firstTokens,
+                            this.taxonomies.get(rightId), namesProb);
+                    if (res > fullThreshold) {
+                        dataSet.add(leftId, rightId, res);//TODO 1.0);
+                        System.out.printf("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
+                                firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
+                                secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX));
+                    } /*else {
+                        logger.info(String.format("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
+                                firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
+                                secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX)));
+                    }*/
                 }
-                secRecord = this.dataMap.get(key.right);
-                double res = this.compareRecords(firstRecord, secRecord, key);
-                if (res > fullThreshold) {
-                    dataSet.put(key, res);//TODO 1.0);
-                    System.out.printf("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
-                            firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
-                            secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX));
-                } /*else {
-                    logger.info(String.format("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
-                            firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
-                            secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX)));
-                }*/
             }
 
             return dataSet;
         }
 
-        private double compareRecords(List<Object> firstRecord, List<Object> secRecord, ImmutablePair<Integer, Integer> nerKey) {
-            double namesProb = this.nerMatrixByNames.get(nerKey);
+        private double compareRecords(List<Object> firstRecord, List<Object> secRecord, String[] firstTokens,
+                                      String[] secTokens, double namesProb) {
             String firstAddr = (String) firstRecord.get(ADDR_INDEX);
             String secAddr = (String) secRecord.get(ADDR_INDEX);
             double addrProb = USAddressParser.compare(firstAddr, secAddr, distance);
@@ -320,7 +446,7 @@ public class FullFieldsComparator {
 
             String firstTaxon = (String) firstRecord.get(TAXONOM_INDEX);
             String secTaxon = (String) secRecord.get(TAXONOM_INDEX);
-            double taxonomProb = compareTaxonomies(firstTaxon, secTaxon);
+            double taxonomProb = compareTaxonomies(firstTaxon, secTaxon, firstTokens, secTokens);
 
             if (addrProb >= 1.0 && taxonomProb >= 1.0) {
                 return 1.0;
@@ -335,42 +461,51 @@ public class FullFieldsComparator {
         }
     }
 
-    static double compareTaxonomies(String firstTaxon, String secTaxon) {
+    static double compareTaxonomies(String firstTaxon, String secTaxon, String[] fTokens, String[] sTokens) {
         if (firstTaxon.equalsIgnoreCase(secTaxon)) {
             // complete match
             return 1.0;
         }
-        String[] fTokens = firstTaxon.split(" |,");
-        String[] sTokens = secTaxon.split(" |,");
         double taxonomProb = 0;
-        for (String fStr : fTokens) {
-            fStr = filterNoise(fStr);
-            if (fStr.length() < 3) {
-                continue;
-            }
-            for (String sStr : sTokens) {
-                sStr = filterNoise(sStr);
-                if (sStr.length() < 3) {
-                    continue;
-                }
-                double proximity = distance.proximity(fStr, sStr);
+        for (String fToken : fTokens) {
+            for (String sToken : sTokens) {
+                // the pairs of tokens which can not exceed the best similarity found so far are abandoned early
+                double proximity = distance.proximityAtLeast(fToken, sToken, taxonomProb);
                 if (proximity > taxonomProb) {
                     taxonomProb = proximity;
                 }
                 if (taxonomProb >= 1.0) {
                     // no need to go further
-                    break;
+                    return taxonomProb;
                 }
             }
-            if (taxonomProb >= 1.0) {
-                // no need to go further
-                break;
-            }
         }
 
         return taxonomProb;
     }
 
+    // returns the tokens of taxonomies of records keyed by record ID, the tokens are extracted once per record
+    private static HashMap<Integer, String[]> taxonomiesTokens(TreeMap<Integer, List<Object>> dataMap) {
+        HashMap<Integer, String[]> taxonomies = new HashMap<>(dataMap.size() * 2);
+        for (Map.Entry<Integer, List<Object>> entry : dataMap.entrySet()) {
+            taxonomies.put(entry.getKey(), taxonomyTokens((String) entry.getValue().get(TAXONOM_INDEX)));
+        }
+        return taxonomies;
+    }
+
+    // returns the tokens of taxonomy filtered from noise and not shorter than three characters
+    private static String[] taxonomyTokens(String taxon) {
+        String[] tokens = taxon.split(" |,");
+        int count = 0;
+        for (String token : tokens) {
+            token = filterNoise(token);
+            if (token.length() >= 3) {
+                tokens[count++] = token;
+            }
+        }
+        return Arrays.copyOf(tokens, count);
+    }
+
     static String filterNoise(String str) {
         str = str.replace("'", "");
         str = str.replace("&", " ");
@@ -378,26 +513,26 @@ public class FullFieldsComparator {
     }
 
     // Task to recursively compare records by name fields using Fork-Join thread
-    class FullRecordsCompareByAddressTask extends RecursiveTask<TreeMap<ImmutablePair<Integer, Integer>, Double>> {
+    class FullRecordsCompareByAddressTask extends RecursiveTask<List<PairMatrix>> {
         // The RAW records
         private final TreeMap<Integer, List<Object>> dataMap;
-        // The sorted NER keys
-        private final ArrayList<ImmutablePair<Integer, Integer>> sortedAddrNerKeys;
+        // The tokens of taxonomies of records
+        private final HashMap<Integer, String[]> taxonomies;
         // The NER results matrix
-        private final Map<ImmutablePair<Integer, Integer>, Double> nerMatrixByAddr;
+        private final SimilarityGraph nerMatrixByAddr;
 
-        // The start index (inclusive)
+        // The first left record ID (inclusive)
         private final int start;
-        // The length of data train to process
+        // The number of left records to process
         private final int lenght;
         // The minimal size of one chunk
         private final int chunkSize;
 
-        FullRecordsCompareByAddressTask(TreeMap<Integer, List<Object>> dataMap, Map<ImmutablePair<Integer, Integer>, Double> nerMatrix,
-                                        ArrayList<ImmutablePair<Integer, Integer>> sortedNerKeys, int start, int lenght, int chunkSize) {
+        FullRecordsCompareByAddressTask(TreeMap<Integer, List<Object>> dataMap, HashMap<Integer, String[]> taxonomies,
+                                        SimilarityGraph nerMatrix, int start, int lenght, int chunkSize) {
             this.dataMap = dataMap;
+            this.taxonomies = taxonomies;
             this.nerMatrixByAddr = nerMatrix;
-            this.sortedAddrNerKeys = sortedNerKeys;
             this.start = start;
             this.lenght = lenght;
             this.chunkSize = chunkSize;
@@ -405,9 +540,9 @@ public class FullFieldsComparator {
         }
 
         @Override
-        protected TreeMap<ImmutablePair<Integer, Integer>, Double> compute() {
-            if (this.lenght < this.chunkSize) {
-                return this.computeDirect();
+        protected List<PairMatrix> compute() {
+            if (this.lenght <= this.chunkSize) {
+                return Collections.singletonList(this.computeDirect());
             }
 
             System.out.println("+++++++++++++++ Starting comparator by ADDRESS +++++++++++++++");
@@ -415,69 +550,60 @@ public class FullFieldsComparator {
             // split further
             int split = this.lenght / 2;
 
-            FullRecordsCompareByAddressTask[] tasks = {new FullRecordsCompareByAddressTask(this.dataMap, this.nerMatrixByAddr, sortedAddrNerKeys, this.start, split, this.chunkSize),
-                    new FullRecordsCompareByAddressTask(this.dataMap, this.nerMatrixByAddr, sortedAddrNerKeys, this.start + split, this.lenght - split, this.chunkSize)};
+            FullRecordsCompareByAddressTask[] tasks = {new FullRecordsCompareByAddressTask(this.dataMap, this.taxonomies, this.nerMatrixByAddr, this.start, split, this.chunkSize),
+                    new FullRecordsCompareByAddressTask(this.dataMap, this.taxonomies, this.nerMatrixByAddr, this.start + split, this.lenght - split, this.chunkSize)};
             Collection<FullRecordsCompareByAddressTask> tasksResults = invokeAll(Arrays.asList(tasks));
 
-            // merge
-            TreeMap<ImmutablePair<Integer, Integer>, Double> dataSet = new TreeMap<>(new NerKeysComparator());
+            // collect sorted runs in order of keys, they are merged once by caller
+            List<PairMatrix> runs = new ArrayList<>();
             for (FullRecordsCompareByAddressTask task : tasksResults) {
                 if (task.isDone()) {
-                    dataSet.putAll(task.getRawResult());
+                    runs.addAll(task.getRawResult());
                 } else {
                     System.out.printf("Failed to get task results, reason: %s\n", task.getException());
                 }
             }
-            return dataSet;
+            return runs;
         }
 
-        private TreeMap<ImmutablePair<Integer, Integer>, Double> computeDirect() {
-            TreeMap<ImmutablePair<Integer, Integer>, Double> dataSet = new TreeMap<>(new NerKeysComparator());
+        private PairMatrix computeDirect() {
+            PairMatrix dataSet = new PairMatrix();
             int to = this.start + this.lenght;
-            List<Object> firstRecord = null, secRecord;
-            int lastLeftId = -1;
-            for (int i = this.start; i < to; i++) {
-                ImmutablePair<Integer, Integer> key = this.sortedAddrNerKeys.get(i);
-                if (lastLeftId != key.left) {
-                    // its often that first record has multiple matches
-                    firstRecord = this.dataMap.get(key.left);
-                    lastLeftId = key.left;
+            List<Object> firstRecord, secRecord;
+            for (int leftId = this.start; leftId < to; leftId++) {
+                int end = this.nerMatrixByAddr.end(leftId);
+                int edge = this.nerMatrixByAddr.start(leftId);
+                if (edge == end) {
+                    continue;
+                }
+                // all candidates of first record are compared in a row
+                firstRecord = this.dataMap.get(leftId);
+                for (; edge < end; edge++) {
+                    int rightId = this.nerMatrixByAddr.getNeighbor(edge);
+                    secRecord = this.dataMap.get(rightId);
+                    String firstTaxon = (String) firstRecord.get(TAXONOM_INDEX);
+                    String secTaxon = (String) secRecord.get(TAXONOM_INDEX);
+                    double taxonomProb = compareTaxonomies(firstTaxon, secTaxon, this.taxonomies.get(leftId),
+                            this.taxonomies.get(rightId));
+                    double addrProb = this.nerMatrixByAddr.getScore(edge);
+
+                    if (addrProb >= 1.0 && taxonomProb >= 1.0) {
+                        dataSet.add(leftId, rightId, 1.0);
+                        System.out.printf("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
+                                firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
+                                secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX));
+                    }/* else {
+                        System.out.printf("Excluded: %s | %s | %s <::> %s | %s | %s\n",
+                                firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
+                                secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX));
+                    }*/
                 }
-                secRecord = this.dataMap.get(key.right);
-                String firstTaxon = (String) firstRecord.get(TAXONOM_INDEX);
-                String secTaxon = (String) secRecord.get(TAXONOM_INDEX);
-                double taxonomProb = compareTaxonomies(firstTaxon, secTaxon);
-                double addrProb = this.nerMatrixByAddr.get(key);
-
-                if (addrProb >= 1.0 && taxonomProb >= 1.0) {
-                    dataSet.put(key, 1.0);
-                    System.out.printf("%s | %s | %s | %s \n%s | %s | %s | %s\n++++++++++++++++++++++++++++++\n",
-                            firstRecord.get(ID_INDEX), firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
-                            secRecord.get(ID_INDEX), secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX));
-                }/* else {
-                    System.out.printf("Excluded: %s | %s | %s <::> %s | %s | %s\n",
-                            firstRecord.get(NAME_INDEX), firstRecord.get(ADDR_INDEX), firstRecord.get(TAXONOM_INDEX),
-                            secRecord.get(NAME_INDEX), secRecord.get(ADDR_INDEX), secRecord.get(TAXONOM_INDEX));
-                }*/
             }
 
             return dataSet;
         }
     }
 
-    // The comparator to order NER keys in ascending order by 1st record ID and that by 2nd record ID
-    class NerKeysComparator implements Comparator<ImmutablePair<Integer, Integer>> {
-
-        @Override
-        public int compare(ImmutablePair<Integer, Integer> o1, ImmutablePair<Integer, Integer> o2) {
-            int res = o1.left.compareTo(o2.left);
-            if (res == 0) {
-                res = o1.right.compareTo(o2.right);
-            }
-            return res;
-        }
-    }
-
     // Comparator to sort resulting records in ascending order by first record ID and than by second record ID
     class RecordsResultComparator implements Comparator<List<Object>> {
 
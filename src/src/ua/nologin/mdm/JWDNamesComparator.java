@@ -1,16 +1,27 @@
 package ua.nologin.mdm;
 
-import com.aliasi.spell.JaroWinklerDistance;
-import org.apache.commons.lang3.tuple.ImmutablePair;
+import ua.nologin.mdm.blocking.Blocks;
+import ua.nologin.mdm.blocking.CandidatePairsAction;
+import ua.nologin.mdm.blocking.JaroFilter;
+import ua.nologin.mdm.blocking.MinHashLSH;
+import ua.nologin.mdm.blocking.PairCallback;
+import ua.nologin.mdm.blocking.PairTilesAction;
+import ua.nologin.mdm.blocking.PhoneticEncoder;
+import ua.nologin.mdm.blocking.QGramIndex;
+import ua.nologin.mdm.blocking.SortKey;
+import ua.nologin.mdm.converters.SegmentedMatrixWriter;
+import ua.nologin.mdm.model.PairMatrix;
+import ua.nologin.mdm.model.PairScoreMap;
+import ua.nologin.mdm.model.PairSink;
+import ua.nologin.mdm.model.SimilarityGraph;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
 
 import static ua.nologin.mdm.Defines.ID_INDEX;
 import static ua.nologin.mdm.Defines.NAME_INDEX;
@@ -21,30 +32,172 @@ import static ua.nologin.mdm.Defines.NAME_INDEX;
  * Created by Iaroslav Omelianenko on 8/14/15.
  */
 public class JWDNamesComparator {
+    /** The default size of sliding window for sorted neighborhood strategy. */
+    public static final int DEFAULT_WINDOW = 20;
+    /** The default length of q-grams for q-gram index strategy. */
+    public static final int DEFAULT_QGRAM_SIZE = 3;
+    /** The default minimal number of common q-grams of compared names. */
+    public static final int DEFAULT_QGRAM_MIN_COMMON = 4;
 
-    private JaroWinklerDistance jwd;
+    /**
+     * The strategies to select pairs of records to be compared.
+     */
+    public enum Strategy {
+        /** All records against each other. */
+        BRUTE_FORCE,
+        /** All records against each other within blocks of records with the same first letter of name. */
+        ORDERED_SET,
+        /** The records within sliding window over records ordered by name keys. */
+        SORTED_NEIGHBORHOOD,
+        /** The records sharing at least specified number of name q-grams found by inverted index. */
+        QGRAM_INDEX,
+        /** The records with colliding MinHash signatures of name q-grams in at least one LSH band. */
+        MINHASH_LSH,
+        /** All records against each other within blocks of records sharing phonetic code of given name or surname. */
+        PHONETIC
+    }
+
+    private JaroWinkler jwd;
     // The minimal similarity threshold
     private double threshold;
+    // The minimal Jaro similarity of names which may reach threshold of Jaro-Winkler similarity
+    private double minJaro;
+    // The strategy to select pairs to compare
+    private Strategy strategy = Strategy.ORDERED_SET;
+    // The size of sliding window for sorted neighborhood
+    private int window = DEFAULT_WINDOW;
+    // The keys to order records by in each pass of sorted neighborhood
+    private SortKey[] passes = {SortKey.FULL_NAME};
+    // The length of q-grams and minimal number of common q-grams for q-gram index
+    private int qgramSize = DEFAULT_QGRAM_SIZE;
+    private int qgramMinCommon = DEFAULT_QGRAM_MIN_COMMON;
+    // The number of bands and rows per band of MinHash LSH
+    private int lshBands = MinHashLSH.DEFAULT_BANDS;
+    private int lshRows = MinHashLSH.DEFAULT_ROWS;
+    // The encoder of names tokens for phonetic blocking
+    private PhoneticEncoder phoneticEncoder = PhoneticEncoder.SOUNDEX_CODED_INITIAL;
 
     public JWDNamesComparator(double threshold) {
         this.threshold = threshold;
-        this.jwd = JaroWinklerDistance.JARO_WINKLER_DISTANCE;
+        this.jwd = JaroWinkler.JARO_WINKLER;
+        this.minJaro = this.jwd.minJaro(threshold);
+    }
+
+    /**
+     * Sets the strategy to select pairs of records to be compared.
+     *
+     * @param strategy the strategy
+     */
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Sets the size of sliding window for sorted neighborhood strategy, i.e. each record is compared with the
+     * next <code>window - 1</code> records in order.
+     *
+     * @param window the size of window, at least 2
+     */
+    public void setWindow(int window) {
+        if (window < 2) {
+            throw new IllegalArgumentException("Window size should be at least 2");
+        }
+        this.window = window;
+    }
+
+    /**
+     * Sets the keys to order records by in consecutive passes of sorted neighborhood strategy.
+     *
+     * @param passes the sort keys, one per pass
+     */
+    public void setPasses(SortKey... passes) {
+        if (passes.length == 0) {
+            throw new IllegalArgumentException("At least one pass should be specified");
+        }
+        this.passes = passes.clone();
+    }
+
+    /**
+     * Sets parameters of q-gram index strategy.
+     *
+     * @param size      the length of q-grams from 1 to {@link QGramIndex#MAX_Q}
+     * @param minCommon the minimal number of distinct q-grams shared by names to be compared
+     */
+    public void setQGrams(int size, int minCommon) {
+        if (size < 1 || size > QGramIndex.MAX_Q || minCommon < 1) {
+            throw new IllegalArgumentException("Wrong q-grams parameters: size " + size + ", common " + minCommon);
+        }
+        this.qgramSize = size;
+        this.qgramMinCommon = minCommon;
+    }
+
+    /**
+     * Sets parameters of MinHash LSH strategy. The q-grams of names are hashed with length set by
+     * {@link #setQGrams(int, int)}.
+     *
+     * @param bands the number of bands
+     * @param rows  the number of rows per band
+     */
+    public void setLSH(int bands, int rows) {
+        if (bands < 1 || rows < 1) {
+            throw new IllegalArgumentException("Wrong LSH parameters: bands " + bands + ", rows " + rows);
+        }
+        this.lshBands = bands;
+        this.lshRows = rows;
+    }
+
+    /**
+     * Sets the encoder of names tokens for phonetic blocking strategy.
+     *
+     * @param encoder the phonetic encoder
+     */
+    public void setPhoneticEncoder(PhoneticEncoder encoder) {
+        this.phoneticEncoder = encoder;
     }
 
     /**
      * Method to compare names in the data set loaded from specified input file and to store results as matrix.
      *
-     * @param input   the input file with CSV data set
+     * @param input   the input file with data set in binary or CSV format
      * @param results the output file to store resulting matrix
      */
     public void compareNames(File input, File results) throws IOException {
-        List<List<Object>> dataSet = UtilsIO.loadCSVAsDataSet(input);
-
-        ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix = this.compareNamesOrderedSet(dataSet);//this.compareNamesBruteForce(dataSet);
+        List<List<Object>> dataSet = UtilsIO.loadDataSet(input, ID_INDEX, NAME_INDEX);
 
         System.out.printf("Saving processed records to: %s\n", results.getAbsolutePath());
-        // save data set
-        UtilsIO.saveMatrix(matrix, results);
+        // found pairs are streamed to the results file
+        SegmentedMatrixWriter writer = UtilsIO.openMatrixWriter(results);
+        try {
+            switch (this.strategy) {
+                case BRUTE_FORCE:
+                    this.compareNamesBruteForce(dataSet, writer);
+                    break;
+
+                case SORTED_NEIGHBORHOOD:
+                    this.compareNamesSortedNeighborhood(dataSet, writer);
+                    break;
+
+                case QGRAM_INDEX:
+                    this.compareNamesQGramIndex(dataSet, writer);
+                    break;
+
+                case MINHASH_LSH:
+                    this.compareNamesLSH(dataSet, writer);
+                    break;
+
+                case PHONETIC:
+                    this.compareNamesPhonetic(dataSet, writer);
+                    break;
+
+                default:
+                    this.compareNamesOrderedSet(dataSet, writer);
+                    break;
+            }
+        } finally {
+            writer.close();
+        }
+
+        System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate names records\n", writer.getCount());
     }
 
     /**
@@ -53,18 +206,23 @@ public class JWDNamesComparator {
      * @param dataSet the data set to proceed.
      * @return the processed matrix.
      */
-    public ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> compareNamesBruteForce(List<List<Object>> dataSet) {
-        ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix = new ConcurrentHashMap<>(dataSet.size(), 0.75f);
+    public PairScoreMap compareNamesBruteForce(List<List<Object>> dataSet) {
+        return this.collect(dataSet, this::compareNamesBruteForce);
+    }
 
+    /**
+     * Compare names by brute force iteration over all records against each record and put found pairs into
+     * provided sink as soon as found.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareNamesBruteForce(List<List<Object>> dataSet, PairSink sink) {
         // do processing in parallel
-        int size = dataSet.size();
-        CalcDistanceBruteForceAction da = new CalcDistanceBruteForceAction(matrix, dataSet, 0, size, size / 4);
+        NamesComparison comparison = new NamesComparison(sink, dataSet);
         ForkJoinPool pool = new ForkJoinPool();
-        pool.invoke(da);
-
-        System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate names records\n", matrix.size());
-
-        return matrix;
+        pool.invoke(PairTilesAction.triangle(0, dataSet.size(), PairTilesAction.DEFAULT_TILE_SIZE, comparison));
+        pool.shutdown();
     }
 
     /**
@@ -73,24 +231,244 @@ public class JWDNamesComparator {
      * @param dataSet the data set to proceed.
      * @return the processed matrix.
      */
-    public ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> compareNamesOrderedSet(List<List<Object>> dataSet) {
-        ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix = new ConcurrentHashMap<>(dataSet.size(), 0.75f, 26);
+    public PairScoreMap compareNamesOrderedSet(List<List<Object>> dataSet) {
+        return this.collect(dataSet, this::compareNamesOrderedSet);
+    }
 
+    /**
+     * Compare names by iteration through ordered by name records against each record and put found pairs into
+     * provided sink as soon as found.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareNamesOrderedSet(List<List<Object>> dataSet, PairSink sink) {
         // do processing in parallel
         int size = dataSet.size();
-        CalcDistanceOrderedSetAction da = new CalcDistanceOrderedSetAction(matrix, dataSet, 0, size);
+        CalcDistanceOrderedSetAction da = new CalcDistanceOrderedSetAction(sink, dataSet, 0, size);
         ForkJoinPool pool = new ForkJoinPool();
         pool.invoke(da);
+    }
+
+    /**
+     * Compare names of records within sliding window over records ordered by name. Each pass orders records by
+     * its own key and compares only pairs not compared in previous passes. The number of comparisons is about
+     * <code>size * (window - 1)</code> per pass.
+     *
+     * @param dataSet the data set to proceed.
+     * @return the processed matrix.
+     */
+    public PairScoreMap compareNamesSortedNeighborhood(List<List<Object>> dataSet) {
+        return this.collect(dataSet, this::compareNamesSortedNeighborhood);
+    }
+
+    /**
+     * Compare names of records within sliding window over records ordered by name and put found pairs into
+     * provided sink as soon as found.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareNamesSortedNeighborhood(List<List<Object>> dataSet, PairSink sink) {
+        int size = dataSet.size();
+        // The positions of records in order of each pass
+        int[][] ranks = new int[this.passes.length][];
+        PairMatrix pairs = new PairMatrix(size);
+        for (int pass = 0; pass < this.passes.length; pass++) {
+            int[] order = sortedOrder(dataSet, this.passes[pass]);
+            ranks[pass] = new int[size];
+            for (int i = 0; i < size; i++) {
+                ranks[pass][order[i]] = i;
+            }
+            System.out.printf("Starting pass %d by %s with window %d\n", pass + 1, this.passes[pass], this.window);
+            this.addWindowPairs(order, ranks, pass, pairs);
+        }
+        SimilarityGraph candidates = SimilarityGraph.build(pairs);
+        System.out.printf("Found %d candidate pairs in %d passes\n", candidates.getEdgesCount(), this.passes.length);
+
+        this.compareCandidates(dataSet, candidates, sink);
+    }
+
+    // adds pairs of records within sliding window over order of pass which were not in the same window before
+    private void addWindowPairs(int[] order, int[][] ranks, int pass, PairMatrix pairs) {
+        for (int from = 0; from < order.length; from++) {
+            int first = order[from];
+            int to = Math.min(from + this.window, order.length);
+            for (int i = from + 1; i < to; i++) {
+                int second = order[i];
+                if (!this.comparedBefore(ranks, pass, first, second)) {
+                    pairs.add(Math.min(first, second), Math.max(first, second), 0);
+                }
+            }
+        }
+    }
+
+    // checks whether records were in the same window in one of previous passes
+    private boolean comparedBefore(int[][] ranks, int pass, int first, int second) {
+        for (int p = 0; p < pass; p++) {
+            if (Math.abs(ranks[p][first] - ranks[p][second]) < this.window) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the matrix of pairs found by specified comparison of data set
+    private PairScoreMap collect(List<List<Object>> dataSet, BiConsumer<List<List<Object>>, PairSink> comparison) {
+        PairScoreMap matrix = new PairScoreMap(dataSet.size());
+
+        comparison.accept(dataSet, matrix.synchronizedSink());
 
         System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate names records\n", matrix.size());
 
         return matrix;
     }
 
+    // compares names of candidate pairs of records indices in parallel
+    private void compareCandidates(List<List<Object>> dataSet, SimilarityGraph candidates, PairSink sink) {
+        ForkJoinPool pool = new ForkJoinPool();
+        pool.invoke(new CandidatePairsAction(candidates, Math.max(dataSet.size() / 16, 1),
+                new NamesComparison(sink, dataSet)));
+        pool.shutdown();
+    }
+
+    /**
+     * Compare names of records which share at least configured number of q-grams. The candidates are found by
+     * inverted index from q-grams to records, so names with typos at any position are compared, while most of
+     * pairs are never touched.
+     *
+     * @param dataSet the data set to proceed.
+     * @return the processed matrix.
+     */
+    public PairScoreMap compareNamesQGramIndex(List<List<Object>> dataSet) {
+        return this.collect(dataSet, this::compareNamesQGramIndex);
+    }
+
+    /**
+     * Compare names of records which share at least configured number of q-grams and put found pairs into
+     * provided sink as soon as found.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareNamesQGramIndex(List<List<Object>> dataSet, PairSink sink) {
+        int size = dataSet.size();
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = (String) dataSet.get(i).get(NAME_INDEX);
+        }
+        QGramIndex index = new QGramIndex(names, this.qgramSize);
+        System.out.printf("Built index of %d-grams for %d names\n", this.qgramSize, size);
+        SimilarityGraph candidates = SimilarityGraph.build(index.candidatePairs(this.qgramMinCommon));
+        System.out.printf("Found %d candidate pairs sharing at least %d q-grams\n", candidates.getEdgesCount(),
+                this.qgramMinCommon);
+
+        this.compareCandidates(dataSet, candidates, sink);
+    }
+
+    /**
+     * Compare names of records which MinHash signatures of name q-grams collide in at least one LSH band. The
+     * number of compared pairs grows with number of similar names rather than with square of records number.
+     *
+     * @param dataSet the data set to proceed.
+     * @return the processed matrix.
+     */
+    public PairScoreMap compareNamesLSH(List<List<Object>> dataSet) {
+        return this.collect(dataSet, this::compareNamesLSH);
+    }
+
+    /**
+     * Compare names of records which MinHash signatures of name q-grams collide in at least one LSH band and put
+     * found pairs into provided sink as soon as found.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareNamesLSH(List<List<Object>> dataSet, PairSink sink) {
+        int size = dataSet.size();
+        long[][] features = new long[size][];
+        for (int i = 0; i < size; i++) {
+            features[i] = QGramIndex.grams((String) dataSet.get(i).get(NAME_INDEX), this.qgramSize);
+        }
+        MinHashLSH lsh = new MinHashLSH(this.lshBands, this.lshRows);
+        SimilarityGraph candidates = SimilarityGraph.build(lsh.candidates(lsh.signatures(features)));
+        System.out.printf("Found %d candidate pairs with %d bands of %d rows\n", candidates.getEdgesCount(),
+                this.lshBands, this.lshRows);
+
+        this.compareCandidates(dataSet, candidates, sink);
+    }
+
+    /**
+     * Compare names of records within blocks of records sharing phonetic code of the first or the last token of
+     * name. The names of the same sound but different spelling, even in the first letter, fall into the same block,
+     * as well as names which differ in given name or surname only, while blocks are much smaller than blocks by the
+     * first letter.
+     *
+     * @param dataSet the data set to proceed.
+     * @return the processed matrix.
+     */
+    public PairScoreMap compareNamesPhonetic(List<List<Object>> dataSet) {
+        return this.collect(dataSet, this::compareNamesPhonetic);
+    }
+
+    /**
+     * Compare names of records within blocks of records sharing phonetic code of name token and put found pairs
+     * into provided sink as soon as found. The pairs sharing both codes are compared once.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareNamesPhonetic(List<List<Object>> dataSet, PairSink sink) {
+        int size = dataSet.size();
+        // the keys are calculated once per record
+        String[][] recordKeys = new String[size][];
+        int entries = 0;
+        for (int i = 0; i < size; i++) {
+            recordKeys[i] = this.phoneticEncoder.keys((String) dataSet.get(i).get(NAME_INDEX));
+            entries += recordKeys[i].length;
+        }
+        // one entry per key of record, the names without letters have no keys and are not compared
+        String[] keys = new String[entries];
+        int[] records = new int[entries];
+        int[] ids = new int[entries];
+        int entry = 0;
+        for (int i = 0; i < size; i++) {
+            int id = ((Number) dataSet.get(i).get(ID_INDEX)).intValue();
+            for (String key : recordKeys[i]) {
+                keys[entry] = key;
+                records[entry] = i;
+                ids[entry] = id;
+                entry++;
+            }
+        }
+
+        // the pairs found in blocks of both keys are merged into one candidate
+        PairMatrix pairs = new PairMatrix(size);
+        int blocks = Blocks.pairs(keys, records, Blocks.order(keys, ids), pairs);
+        SimilarityGraph candidates = SimilarityGraph.build(pairs);
+        System.out.printf("Split %d records into %d phonetic blocks by %s with %d candidate pairs\n", size, blocks,
+                this.phoneticEncoder, candidates.getEdgesCount());
+
+        this.compareCandidates(dataSet, candidates, sink);
+    }
+
+    // returns indices of records ordered by key of name and then by ID
+    private static int[] sortedOrder(List<List<Object>> dataSet, SortKey sortKey) {
+        int size = dataSet.size();
+        String[] keys = new String[size];
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            List<Object> row = dataSet.get(i);
+            keys[i] = sortKey.key((String) row.get(NAME_INDEX));
+            ids[i] = ((Number) row.get(ID_INDEX)).intValue();
+        }
+        return Blocks.order(keys, ids);
+    }
+
     // The task to recursively calculate distance in parallel assuming that input set ordered naturally by name
     class CalcDistanceOrderedSetAction extends RecursiveAction {
         // The results holder
-        private ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix;
+        private final PairSink sink;
         // The input data set
         private final List<List<Object>> dataSet;
         // The start index (inclusive)
@@ -100,9 +478,8 @@ public class JWDNamesComparator {
 
         private char letter;
 
-
-        CalcDistanceOrderedSetAction(ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix, List<List<Object>> dataSet, int from, int lenght) {
-            this.matrix = matrix;
+        CalcDistanceOrderedSetAction(PairSink sink, List<List<Object>> dataSet, int from, int lenght) {
+            this.sink = sink;
             this.dataSet = dataSet;
             this.start = from;
             this.lenght = lenght;
@@ -130,7 +507,7 @@ public class JWDNamesComparator {
                 char first = name.charAt(0);
                 if (first == letter) {
                     // store block and move to the next
-                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(matrix, dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                     task.letter = letter;
                     dsStartIndex = i;
@@ -139,7 +516,7 @@ public class JWDNamesComparator {
                     }
                 } else if (i == dsSize - 1) {
                     // the last block for 'Z'
-                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(matrix, dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                 }
             }
@@ -149,98 +526,49 @@ public class JWDNamesComparator {
 
         private void computeDirect() {
             int to = this.start + this.lenght;
-            for (int i = this.start; i < to - 1; i++) {
-                List<Object> row = this.dataSet.get(i);
-                this.calcDistance((String) row.get(NAME_INDEX), i, to);
-            }
+            // the names and IDs of block are extracted once and large blocks are compared by tiles in parallel
+            NamesComparison comparison = new NamesComparison(this.sink, this.dataSet.subList(this.start, to));
+            PairTilesAction.triangle(0, this.lenght, PairTilesAction.DEFAULT_TILE_SIZE, comparison).invoke();
             System.out.printf("Complete for letter: [%c] from: %d, to: %d\n", this.letter, this.start, to);
         }
-
-        private void calcDistance(String name, int from, int to) {
-            System.out.printf("Proceed with: %s, start: %d, to: %d\n", name, from, to);
-            List<Object> row;
-            int fromId = ((Double) dataSet.get(from).get(ID_INDEX)).intValue();
-            for (int i = from + 1; i < to; i++) {
-                row = dataSet.get(i);
-                String secName = (String) row.get(NAME_INDEX);
-                int toId = ((Double) row.get(ID_INDEX)).intValue();
-                double proximity = jwd.proximity(name, secName);
-                if (proximity >= threshold) {
-                    if (fromId > toId) {
-                        // rearrange
-                        int tmp = fromId;
-                        fromId = toId;
-                        toId = tmp;
-                    }
-                    matrix.put(new ImmutablePair(fromId, toId), proximity);
-                    System.out.printf("[%c] %d : %d : %.2f <> %s | %s\n", this.letter, fromId, toId, proximity, name, secName);
-                }
-            }
-        }
     }
 
-    // The task to recursively calculate distance in parallel using brute force approach
-    class CalcDistanceBruteForceAction extends RecursiveAction {
+    // The comparison of names of pairs of records, found pairs are put into sink
+    class NamesComparison implements PairCallback {
         // The results holder
-        private ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix;
-        // The input data set
-        private final List<List<Object>> dataSet;
-        // The start index (inclusive)
-        private final int start;
-        // The length of data train to process
-        private final int lenght;
-        // The minimal size of one chunk
-        private final int chunkSize;
-
-        CalcDistanceBruteForceAction(ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix, List<List<Object>> dataSet, int from, int lenght, int chunkSize) {
-            this.matrix = matrix;
-            this.dataSet = dataSet;
-            this.start = from;
-            this.lenght = lenght;
-            this.chunkSize = chunkSize;
+        private final PairSink sink;
+        // The names and IDs of records
+        private final String[] names;
+        private final int[] ids;
+        // The filter of pairs of names which can not reach threshold
+        private final JaroFilter filter;
+
+        NamesComparison(PairSink sink, List<List<Object>> dataSet) {
+            int size = dataSet.size();
+            this.sink = sink;
+            this.names = new String[size];
+            this.ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                List<Object> row = dataSet.get(i);
+                this.names[i] = (String) row.get(NAME_INDEX);
+                this.ids[i] = ((Number) row.get(ID_INDEX)).intValue();
+            }
+            this.filter = new JaroFilter(this.names);
         }
 
         @Override
-        protected void compute() {
-            if (this.lenght < this.chunkSize) {
-                this.computeDirect();
+        public void compare(int first, int second) {
+            if (!this.filter.mayReach(first, second, minJaro)) {
                 return;
             }
-            // split further
-            int split = this.lenght / 2;
-
-            invokeAll(new CalcDistanceBruteForceAction(this.matrix, this.dataSet, this.start, split, this.chunkSize),
-                    new CalcDistanceBruteForceAction(this.matrix, this.dataSet, this.start + split, this.lenght - split, this.chunkSize));
-
-        }
-
-        private void computeDirect() {
-            int to = this.start + this.lenght;
-            for (int i = this.start; i < to; i++) {
-                List<Object> row = this.dataSet.get(i);
-                this.calcDistance((String) row.get(NAME_INDEX), i);
-            }
-        }
-
-        private void calcDistance(String name, int from) {
-            int size = this.dataSet.size();
-            List<Object> row;
-            int fromId = ((Double) dataSet.get(from).get(ID_INDEX)).intValue();
-            for (int i = from + 1; i < size; i++) {
-                row = dataSet.get(i);
-                String secName = (String) row.get(NAME_INDEX);
-                int toId = ((Double) row.get(ID_INDEX)).intValue();
-                double proximity = jwd.proximity(name, secName);
-                if (proximity >= threshold) {
-                    if (fromId > toId) {
-                        // rearrange
-                        int tmp = fromId;
-                        fromId = toId;
-                        toId = tmp;
-                    }
-                    matrix.put(new ImmutablePair(fromId, toId), proximity);
-                    System.out.printf("%d : %d <> %s | %s\n", fromId, toId, name, secName);
-                }
+            double proximity = jwd.proximityAtLeast(this.names[first], this.names[second], threshold);
+            if (proximity >= threshold) {
+                int fromId = this.ids[first];
+                int toId = this.ids[second];
+                // store pair ordered by ID
+                this.sink.put(Math.min(fromId, toId), Math.max(fromId, toId), proximity);
+                System.out.printf("%d : %d : %.2f <> %s | %s\n", fromId, toId, proximity, this.names[first],
+                        this.names[second]);
             }
         }
     }
@@ -0,0 +1,228 @@
+package ua.nologin.mdm;
+
+import com.aliasi.util.Proximity;
+
+import java.util.Arrays;
+
+/**
+ * The Jaro and Jaro-Winkler proximity of strings calculated the same way as by LingPipe's
+ * {@link com.aliasi.spell.JaroWinklerDistance}, so that scores are bit-identical to it and the same thresholds
+ * apply. The characters and matching flags are kept in reusable per thread buffers, so calculation does not
+ * allocate memory. The threshold-aware variant {@link #proximityAtLeast(CharSequence, CharSequence, double)} stops
+ * matching characters as soon as the threshold can not be reached by the rest of characters.
+ */
+public class JaroWinkler implements Proximity<CharSequence> {
+    /** The Jaro proximity, the same as {@link com.aliasi.spell.JaroWinklerDistance#JARO_DISTANCE}. */
+    public static final JaroWinkler JARO = new JaroWinkler(Double.POSITIVE_INFINITY, 0);
+    /** The Jaro-Winkler proximity, the same as {@link com.aliasi.spell.JaroWinklerDistance#JARO_WINKLER_DISTANCE}. */
+    public static final JaroWinkler JARO_WINKLER = new JaroWinkler(0.7, 4);
+
+    // The slack of threshold covering rounding errors of bounds
+    private static final double EPSILON = 1e-9;
+    // The scale of prefix boost per common prefix character
+    private static final double PREFIX_SCALE = 0.1;
+
+    // The reusable buffers of threads
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    // The Jaro proximity above which prefix boost is applied
+    private final double weightThreshold;
+    // The maximal number of common prefix characters to boost proximity
+    private final int numChars;
+
+    /**
+     * Creates Jaro-Winkler proximity with specified parameters.
+     *
+     * @param weightThreshold the Jaro proximity above which common prefix boost is applied
+     * @param numChars        the maximal number of common prefix characters
+     */
+    public JaroWinkler(double weightThreshold, int numChars) {
+        this.weightThreshold = weightThreshold;
+        this.numChars = numChars;
+    }
+
+    @Override
+    public double proximity(CharSequence first, CharSequence second) {
+        return this.proximityAtLeast(first, second, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Calculates proximity of strings if it is not below specified threshold.
+     *
+     * @param first     the first string
+     * @param second    the second string
+     * @param threshold the minimal proximity of interest
+     * @return the proximity if it is at least threshold or negative value otherwise
+     */
+    public double proximityAtLeast(CharSequence first, CharSequence second, double threshold) {
+        Buffers buffers = BUFFERS.get();
+        char[] firstChars = buffers.firstChars(first);
+        char[] secondChars = buffers.secondChars(second);
+        return this.proximityAtLeast(firstChars, first.length(), secondChars, second.length(), threshold, buffers);
+    }
+
+    /**
+     * Calculates proximity of character arrays.
+     *
+     * @param first        the characters of the first string
+     * @param firstLength  the length of the first string
+     * @param second       the characters of the second string
+     * @param secondLength the length of the second string
+     * @return the proximity
+     */
+    public double proximity(char[] first, int firstLength, char[] second, int secondLength) {
+        return this.proximityAtLeast(first, firstLength, second, secondLength, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Calculates proximity of character arrays if it is not below specified threshold.
+     *
+     * @param first        the characters of the first string
+     * @param firstLength  the length of the first string
+     * @param second       the characters of the second string
+     * @param secondLength the length of the second string
+     * @param threshold    the minimal proximity of interest
+     * @return the proximity if it is at least threshold or negative value otherwise
+     */
+    public double proximityAtLeast(char[] first, int firstLength, char[] second, int secondLength, double threshold) {
+        return this.proximityAtLeast(first, firstLength, second, secondLength, threshold, BUFFERS.get());
+    }
+
+    /**
+     * Returns the minimal Jaro proximity at which this proximity may reach specified threshold.
+     *
+     * @param threshold the threshold of this proximity
+     * @return the minimal Jaro proximity
+     */
+    public double minJaro(double threshold) {
+        if (threshold <= this.weightThreshold) {
+            return threshold;
+        }
+        double boost = PREFIX_SCALE * this.numChars;
+        if (boost >= 1.0) {
+            return this.weightThreshold;
+        }
+        return Math.max(this.weightThreshold, (threshold - boost) / (1.0 - boost));
+    }
+
+    private double proximityAtLeast(char[] first, int len1, char[] second, int len2, double threshold,
+                                    Buffers buffers) {
+        if (len1 == 0) {
+            return result(len2 == 0 ? 1.0 : 0.0, threshold);
+        }
+        // the minimal number of matching characters which may give the minimal Jaro proximity
+        int minMatches = 1;
+        double minJaro = this.minJaro(threshold) - EPSILON;
+        if (minJaro > 0 && len2 > 0) {
+            minMatches = Math.max(1, (int) Math.ceil((3.0 * minJaro - 1.0) / (1.0 / len1 + 1.0 / len2)));
+            if (minMatches > Math.min(len1, len2)) {
+                return -1;
+            }
+        }
+
+        int range = Math.max(0, Math.max(len1, len2) / 2 - 1);
+        boolean[] matched1 = buffers.matched(0, len1);
+        boolean[] matched2 = buffers.matched(1, len2);
+        int matches = 0;
+        for (int i = 0; i < len1; i++) {
+            if (matches + len1 - i < minMatches) {
+                // the rest of characters can not give enough matches
+                return -1;
+            }
+            int end = Math.min(i + range + 1, len2);
+            char c = first[i];
+            for (int j = Math.max(0, i - range); j < end; j++) {
+                if (!matched2[j] && c == second[j]) {
+                    matched1[i] = true;
+                    matched2[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return result(0.0, threshold);
+        }
+
+        int transpositions = 0;
+        for (int i = 0, j = 0; i < len1; i++) {
+            if (!matched1[i]) {
+                continue;
+            }
+            while (!matched2[j]) {
+                j++;
+            }
+            if (first[i] != second[j]) {
+                transpositions++;
+            }
+            j++;
+        }
+        int halfTranspositions = transpositions / 2;
+        double m = matches;
+        double weight = (m / len1 + m / len2 + (matches - halfTranspositions) / m) / 3.0;
+        if (weight <= this.weightThreshold) {
+            return result(weight, threshold);
+        }
+
+        int max = Math.min(this.numChars, Math.min(len1, len2));
+        int prefix = 0;
+        while (prefix < max && first[prefix] == second[prefix]) {
+            prefix++;
+        }
+        if (prefix == 0) {
+            return result(weight, threshold);
+        }
+        return result(weight + PREFIX_SCALE * prefix * (1.0 - weight), threshold);
+    }
+
+    private static double result(double proximity, double threshold) {
+        return proximity >= threshold ? proximity : -1;
+    }
+
+    // The reusable characters and matching flags buffers of one thread
+    private static class Buffers {
+        private char[] firstChars = new char[64];
+        private char[] secondChars = new char[64];
+        private final boolean[][] matched = {new boolean[64], new boolean[64]};
+
+        char[] firstChars(CharSequence str) {
+            this.firstChars = copy(str, this.firstChars);
+            return this.firstChars;
+        }
+
+        char[] secondChars(CharSequence str) {
+            this.secondChars = copy(str, this.secondChars);
+            return this.secondChars;
+        }
+
+        // returns cleared flags array of specified length at least
+        boolean[] matched(int index, int length) {
+            if (this.matched[index].length < length) {
+                this.matched[index] = new boolean[Math.max(length, this.matched[index].length * 2)];
+            } else {
+                Arrays.fill(this.matched[index], 0, length, false);
+            }
+            return this.matched[index];
+        }
+
+        private static char[] copy(CharSequence str, char[] buffer) {
+            int length = str.length();
+            if (buffer.length < length) {
+                buffer = new char[Math.max(length, buffer.length * 2)];
+            }
+            if (str instanceof String) {
+                ((String) str).getChars(0, length, buffer, 0);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    buffer[i] = str.charAt(i);
+                }
+            }
+            return buffer;
+        }
+    }
+}
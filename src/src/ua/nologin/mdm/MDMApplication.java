@@ -9,6 +9,11 @@ import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.builder.FileBasedConfigurationBuilder;
 import org.apache.commons.configuration2.builder.fluent.Parameters;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import ua.nologin.mdm.blocking.MinHashLSH;
+import ua.nologin.mdm.blocking.PhoneticEncoder;
+import ua.nologin.mdm.blocking.SortKey;
+import ua.nologin.mdm.converters.CSVSaver;
+import ua.nologin.mdm.converters.MatrixWriter;
 
 import java.io.File;
 import java.io.IOException;
@@ -102,16 +107,34 @@ public class MDMApplication {
 
     public MDMApplication(Configuration config) {
         this.config = config;
+
+        this.setDataSetSchema(this.config.getString("data.set.schema", null));
+        this.setMatrixEncoding(this.config.getString("matrix.encoding", null));
     }
 
     private void runFullComparator() {
         this.setInputFile(this.config.getString("full.compare.input.file"));
         this.setOutputFile(this.config.getString("full.compare.output.file"));
-        this.setModelFile(this.config.getString("names.compare.output.file"));
-        this.setModel2File(this.config.getString("addr.compare.output.file"));
         FullFieldsComparator comparator = new FullFieldsComparator(
                 this.config.getDouble("full.compare.probability.full_threshold"),
                 this.config.getDouble("full.compare.probability.addr_threshold"));
+        if ("MINHASH_LSH".equalsIgnoreCase(this.config.getString("full.compare.candidates", "MATRIX").trim())) {
+            // candidates are found by LSH over recognized names without names matrix
+            this.setModelFile(this.config.getString("names.compare.input.file"));
+            try {
+                MinHashLSH lsh = new MinHashLSH(this.config.getInt("full.compare.lsh.bands", MinHashLSH.DEFAULT_BANDS),
+                        this.config.getInt("full.compare.lsh.rows", MinHashLSH.DEFAULT_ROWS));
+                comparator.compareRecords(this.inputFile, this.modelFile, lsh,
+                        this.config.getDouble("names.compare.proximity.threshold"), this.outputFile);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Failed to run full fields comparator!");
+                System.exit(1);
+            }
+            return;
+        }
+        this.setModelFile(this.config.getString("names.compare.output.file"));
+        this.setModel2File(this.config.getString("addr.compare.output.file"));
         try {
 //            comparator.compareRecords(this.inputFile, this.modelFile, this.model2File, this.outputFile);
             comparator.compareRecords(this.inputFile, this.modelFile, this.outputFile);
@@ -127,6 +150,14 @@ public class MDMApplication {
         this.setInputFile(this.config.getString("addr.compare.input.file"));
         this.setOutputFile(this.config.getString("addr.compare.output.file"));
         USAddressComparator comparator = new USAddressComparator(this.config.getDouble("addr.compare.proximity.threshold"));
+        try {
+            comparator.setBlocking(USAddressComparator.Blocking.valueOf(
+                    this.config.getString("addr.compare.blocking", "CITY_LETTER").trim().toUpperCase()));
+            comparator.setZipPrefix(this.config.getInt("addr.compare.zip_prefix", 0));
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Wrong address comparator settings: %s", e.getMessage());
+            System.exit(1);
+        }
         try {
             comparator.compareAddressFields(this.inputFile, this.outputFile);
         } catch (IOException e) {
@@ -140,6 +171,26 @@ public class MDMApplication {
         this.setInputFile(this.config.getString("names.compare.input.file"));
         this.setOutputFile(this.config.getString("names.compare.output.file"));
         JWDNamesComparator comparator = new JWDNamesComparator(this.config.getDouble("names.compare.proximity.threshold"));
+        try {
+            comparator.setStrategy(JWDNamesComparator.Strategy.valueOf(
+                    this.config.getString("names.compare.strategy", "ORDERED_SET").trim().toUpperCase()));
+            comparator.setWindow(this.config.getInt("names.compare.window", JWDNamesComparator.DEFAULT_WINDOW));
+            String[] passes = this.config.getString("names.compare.passes", "FULL_NAME").split(",");
+            SortKey[] keys = new SortKey[passes.length];
+            for (int i = 0; i < passes.length; i++) {
+                keys[i] = SortKey.valueOf(passes[i].trim().toUpperCase());
+            }
+            comparator.setPasses(keys);
+            comparator.setQGrams(this.config.getInt("names.compare.qgram.size", JWDNamesComparator.DEFAULT_QGRAM_SIZE),
+                    this.config.getInt("names.compare.qgram.min_common", JWDNamesComparator.DEFAULT_QGRAM_MIN_COMMON));
+            comparator.setLSH(this.config.getInt("names.compare.lsh.bands", MinHashLSH.DEFAULT_BANDS),
+                    this.config.getInt("names.compare.lsh.rows", MinHashLSH.DEFAULT_ROWS));
+            comparator.setPhoneticEncoder(PhoneticEncoder.valueOf(
+                    this.config.getString("names.compare.phonetic.encoder", "SOUNDEX_CODED_INITIAL").trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Wrong names comparator settings: %s", e.getMessage());
+            System.exit(1);
+        }
         try {
             comparator.compareNames(this.inputFile, this.outputFile);
         } catch (IOException e) {
@@ -169,6 +220,37 @@ public class MDMApplication {
 
     }
 
+    private void setDataSetSchema(String arg) {
+        if (arg == null) {
+            // use default schema
+            return;
+        }
+        String[] tokens = arg.split(",");
+        CSVSaver.FieldType[] types = new CSVSaver.FieldType[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            try {
+                types[i] = CSVSaver.FieldType.valueOf(tokens[i].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.printf("Unknown data set field type: %s", tokens[i]);
+                System.exit(1);
+            }
+        }
+        UtilsIO.setDataSetSchema(types);
+    }
+
+    private void setMatrixEncoding(String arg) {
+        if (arg == null) {
+            // use default encoding
+            return;
+        }
+        try {
+            UtilsIO.setMatrixEncoding(MatrixWriter.Encoding.valueOf(arg.trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Unknown matrix encoding: %s", arg);
+            System.exit(1);
+        }
+    }
+
     private void setOutputFile(String arg) {
         outputFile = new File(arg);
         if (!outputFile.getParentFile().exists()) {
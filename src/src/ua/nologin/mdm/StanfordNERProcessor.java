@@ -51,7 +51,7 @@ public class StanfordNERProcessor {
     }
 
     public void processNames(File input, File output) throws IOException {
-        List<List<Object>> dataSet = UtilsIO.loadCSVAsDataSet(input);
+        List<List<Object>> dataSet = UtilsIO.loadDataSet(input);
 
         // process loaded data set
         this.processNames(dataSet);
@@ -63,7 +63,7 @@ public class StanfordNERProcessor {
         // save data set
         CSVSaver.FieldType[] types = {CSVSaver.FieldType.INT, CSVSaver.FieldType.STRING,
                 CSVSaver.FieldType.STRING, CSVSaver.FieldType.STRING};
-        UtilsIO.saveCSVDataSet(dataSet, types, output);
+        UtilsIO.saveDataSet(dataSet, types, output);
     }
 
     public void processNames(List<List<Object>> dataSet) {
@@ -156,8 +156,8 @@ public class StanfordNERProcessor {
             int res = this.collator.compare(firstName, secName);
             if (res == 0) {
                 // compare by ID
-                Integer firstID = ((Double) o1.get(ID_INDEX)).intValue();
-                Integer secID = ((Double) o2.get(ID_INDEX)).intValue();
+                Integer firstID = ((Number) o1.get(ID_INDEX)).intValue();
+                Integer secID = ((Number) o2.get(ID_INDEX)).intValue();
                 res = firstID.compareTo(secID);
             }
 
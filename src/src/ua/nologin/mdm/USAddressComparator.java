@@ -1,18 +1,22 @@
 package ua.nologin.mdm;
 
-import com.aliasi.spell.JaroWinklerDistance;
-import org.apache.commons.lang3.tuple.ImmutablePair;
 import ua.nologin.mdm.address.USAddress;
 import ua.nologin.mdm.address.USAddressParser;
+import ua.nologin.mdm.blocking.Blocks;
+import ua.nologin.mdm.blocking.InvokeAllAction;
+import ua.nologin.mdm.blocking.JaroFilter;
+import ua.nologin.mdm.blocking.PairCallback;
+import ua.nologin.mdm.blocking.PairTilesAction;
+import ua.nologin.mdm.converters.SegmentedMatrixWriter;
+import ua.nologin.mdm.model.PairScoreMap;
+import ua.nologin.mdm.model.PairSink;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.Collator;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
-import java.util.concurrent.RecursiveTask;
 
 import static ua.nologin.mdm.Defines.ADDR_INDEX;
 import static ua.nologin.mdm.Defines.ID_INDEX;
@@ -21,20 +25,64 @@ import static ua.nologin.mdm.Defines.ID_INDEX;
  * Created by Iaroslav Omelianenko on 8/17/15.
  */
 public class USAddressComparator {
+    /** The length of ZIP code. */
+    public static final int ZIP5_LENGTH = 5;
+    /** The ZIP code of address without ZIP code, as it is padded by {@link USAddress#setZip5(String)}. */
+    public static final String NO_ZIP5 = "00000";
+
+    /**
+     * The blocking modes to select pairs of records to be compared. The records from different states never reach
+     * usual thresholds, because state equality contributes 0.25 of address similarity, so blocking by state loses
+     * no pairs. The records with different ZIP codes may still reach threshold if street and city are almost equal,
+     * such pairs are found by additional pass over blocks of the same ZIP code prefix.
+     */
+    public enum Blocking {
+        /** All records against each other within blocks of records with the same first letter of city. */
+        CITY_LETTER,
+        /** All records against each other within blocks of records with the same state and ZIP code. */
+        STATE_ZIP5
+    }
 
-    private JaroWinklerDistance distance;
+    private JaroWinkler distance;
 
     // The minimal similarity threshold
     private double threshold;
+    // The blocking mode to select pairs to compare
+    private Blocking blocking = Blocking.CITY_LETTER;
+    // The length of ZIP code prefix for additional pass of state and ZIP blocking, zero if disabled
+    private int zipPrefix;
 
     public USAddressComparator(double threshold) {
         this.threshold = threshold;
 
-        this.distance = JaroWinklerDistance.JARO_DISTANCE;
+        this.distance = JaroWinkler.JARO;
+    }
+
+    /**
+     * Sets the blocking mode to select pairs of records to be compared.
+     *
+     * @param blocking the blocking mode
+     */
+    public void setBlocking(Blocking blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * Sets the length of ZIP code prefix for additional pass of {@link Blocking#STATE_ZIP5} blocking. The pass
+     * compares records of the same state which have different ZIP codes with the same prefix, i.e. neighbouring
+     * postal areas.
+     *
+     * @param zipPrefix the length of prefix from 1 to 4 or zero to skip additional pass
+     */
+    public void setZipPrefix(int zipPrefix) {
+        if (zipPrefix < 0 || zipPrefix >= ZIP5_LENGTH) {
+            throw new IllegalArgumentException("The length of ZIP prefix should be from 0 to " + (ZIP5_LENGTH - 1));
+        }
+        this.zipPrefix = zipPrefix;
     }
 
     public void compareAddressFields(File input, File results) throws IOException {
-        List<List<Object>> dataSet = UtilsIO.loadCSVAsDataSet(input);
+        List<List<Object>> dataSet = UtilsIO.loadDataSet(input, ID_INDEX, ADDR_INDEX);
         // filter address lines from noise
         String addr;
         for (List<Object> row : dataSet) {
@@ -42,50 +90,217 @@ public class USAddressComparator {
             row.set(ADDR_INDEX, addr);
         }
 
-        Map<ImmutablePair<Integer, Integer>, Double> matrix = this.compareAddressFieldsOrdered(dataSet);// this.compareAddressFieldsBruteForce(dataSet);
-
         System.out.printf("Saving processed records to: %s\n", results.getAbsolutePath());
-        // save data set
-        UtilsIO.saveMatrix(matrix, results);
+        // found pairs are streamed to the results file
+        SegmentedMatrixWriter writer = UtilsIO.openMatrixWriter(results);
+        try {
+            if (this.blocking == Blocking.STATE_ZIP5) {
+                this.compareAddressFieldsStateZip(dataSet, writer);
+            } else {
+                this.compareAddressFieldsOrdered(dataSet, writer);// this.compareAddressFieldsBruteForce(dataSet, writer);
+            }
+        } finally {
+            writer.close();
+        }
+
+        System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate address records\n", writer.getCount());
     }
 
-    public Map<ImmutablePair<Integer, Integer>, Double> compareAddressFieldsBruteForce(List<List<Object>> dataSet) {
+    public PairScoreMap compareAddressFieldsBruteForce(List<List<Object>> dataSet) {
+        PairScoreMap matrix = new PairScoreMap(dataSet.size());
+
+        this.compareAddressFieldsBruteForce(dataSet, matrix.synchronizedSink());
+
+        System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate address records\n", matrix.size());
+
+        return matrix;
+    }
+
+    public void compareAddressFieldsBruteForce(List<List<Object>> dataSet, PairSink sink) {
         int splitFactor = 20;
-        ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix = new ConcurrentHashMap<>(dataSet.size(), 0.75f, splitFactor);
 
         // do processing in parallel
         int size = dataSet.size();
-        BruteForceCompareAddressAction ca = new BruteForceCompareAddressAction(matrix, dataSet, 0, size, size / splitFactor);
+        BruteForceCompareAddressAction ca = new BruteForceCompareAddressAction(sink, dataSet, 0, size, size / splitFactor);
         ForkJoinPool pool = new ForkJoinPool();
         pool.invoke(ca);
+    }
+
+    public PairScoreMap compareAddressFieldsOrdered(List<List<Object>> dataSet) {
+        PairScoreMap matrix = new PairScoreMap(dataSet.size());
+
+        this.compareAddressFieldsOrdered(dataSet, matrix.synchronizedSink());
 
         System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate address records\n", matrix.size());
 
         return matrix;
     }
 
-    public Map<ImmutablePair<Integer, Integer>, Double> compareAddressFieldsOrdered(List<List<Object>> dataSet) {
+    public void compareAddressFieldsOrdered(List<List<Object>> dataSet, PairSink sink) {
         // order records ascending
         Collections.sort(dataSet, new SortComparator());
 
-//        int splitFactor = 10;
-//        ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix = new ConcurrentHashMap<>(dataSet.size(), 0.75f, splitFactor);
-
         // do processing in parallel
         int size = dataSet.size();
-//        CalcDistanceOrderedSetAction ca = new CalcDistanceOrderedSetAction(matrix, dataSet, 0, size);
-        CalcDistanceOrderedTask ct = new CalcDistanceOrderedTask(dataSet, 0, size);
+//        CalcDistanceOrderedSetAction ca = new CalcDistanceOrderedSetAction(sink, dataSet, 0, size);
+        CalcDistanceOrderedTask ct = new CalcDistanceOrderedTask(sink, dataSet, 0, size);
         ForkJoinPool pool = new ForkJoinPool();
-        HashMap<ImmutablePair<Integer, Integer>, Double> matrix = pool.invoke(ct);
+        pool.invoke(ct);
+    }
+
+    public PairScoreMap compareAddressFieldsStateZip(List<List<Object>> dataSet) {
+        PairScoreMap matrix = new PairScoreMap(dataSet.size());
+
+        this.compareAddressFieldsStateZip(dataSet, matrix.synchronizedSink());
 
         System.out.printf("+++++++++++++++++++++++++++++++++\nFound: %d duplicate address records\n", matrix.size());
 
         return matrix;
     }
 
-    class CalcDistanceOrderedTask extends RecursiveTask<HashMap<ImmutablePair<Integer, Integer>, Double>> {
+    /**
+     * Compares addresses of records within blocks of records with the same state and ZIP code and, if ZIP prefix
+     * is set, addresses with different ZIP codes within blocks of the same state and ZIP prefix. Found pairs are
+     * put into provided sink as soon as found. The addresses without state or ZIP code are not compared at all.
+     *
+     * @param dataSet the data set to proceed.
+     * @param sink    the receiver of found pairs.
+     */
+    public void compareAddressFieldsStateZip(List<List<Object>> dataSet, PairSink sink) {
+        int size = dataSet.size();
+        // the addresses are parsed once per record
+        USAddress[] addresses = new USAddress[size];
+        int[] ids = new int[size];
+        int unblocked = 0;
+        for (int i = 0; i < size; i++) {
+            List<Object> row = dataSet.get(i);
+            addresses[i] = USAddressParser.parse((String) row.get(ADDR_INDEX));
+            ids[i] = ((Number) row.get(ID_INDEX)).intValue();
+            if (blockKey(addresses[i], ZIP5_LENGTH).isEmpty()) {
+                unblocked++;
+            }
+        }
+        System.out.printf("Skipped %d records without state or ZIP code\n", unblocked);
+
+        JaroFilter streets = streetsFilter(addresses);
+        JaroFilter cities = citiesFilter(addresses);
+        List<PairTilesAction> tasks = new ArrayList<>();
+        long pairs = this.addBlocks(addresses, ids, ZIP5_LENGTH,
+                new AddressComparison(sink, addresses, ids, streets, cities, false), tasks);
+        System.out.printf("Split %d records into %d state and ZIP blocks with %d pairs\n", size, tasks.size(), pairs);
+        if (this.zipPrefix > 0) {
+            int blocks = tasks.size();
+            // the pairs of the same ZIP code are compared by the first pass only
+            pairs = this.addBlocks(addresses, ids, this.zipPrefix,
+                    new AddressComparison(sink, addresses, ids, streets, cities, true), tasks);
+            System.out.printf("Split %d records into %d state and ZIP prefix blocks with at most %d pairs\n",
+                    size, tasks.size() - blocks, pairs);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool();
+        pool.invoke(new InvokeAllAction(tasks));
+        pool.shutdown();
+    }
+
+    // adds tasks to compare records within blocks of the same state and ZIP prefix and returns number of pairs
+    private long addBlocks(USAddress[] addresses, int[] ids, int prefix, AddressComparison comparison,
+                           List<PairTilesAction> tasks) {
+        int size = addresses.length;
+        String[] keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = blockKey(addresses[i], prefix);
+        }
+        List<PairTilesAction> blocks = Blocks.tiles(keys, Blocks.order(keys, ids), comparison);
+        long pairs = 0;
+        for (PairTilesAction block : blocks) {
+            pairs += block.pairs();
+        }
+        tasks.addAll(blocks);
+        return pairs;
+    }
+
+    // returns the key of state and ZIP prefix block of address or empty string if address has no state or ZIP code
+    private static String blockKey(USAddress address, int prefix) {
+        String state = address.getState();
+        String zip5 = address.getZip5();
+        if (state.isEmpty() || zip5.isEmpty() || NO_ZIP5.equals(zip5)) {
+            return "";
+        }
+        return state.toUpperCase() + ' ' + zip5.substring(0, Math.min(prefix, zip5.length())).toUpperCase();
+    }
+
+    // returns the filter of pairs of streets of addresses which can not be similar
+    private static JaroFilter streetsFilter(USAddress[] addresses) {
+        String[] streets = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            streets[i] = addresses[i].getStreetWithNumber();
+        }
+        return new JaroFilter(streets);
+    }
+
+    // returns the filter of pairs of cities of addresses which can not be similar
+    private static JaroFilter citiesFilter(USAddress[] addresses) {
+        String[] cities = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            cities[i] = addresses[i].getCity();
+        }
+        return new JaroFilter(cities);
+    }
+
+    // The comparison of addresses of pairs of records, found pairs are put into sink
+    class AddressComparison implements PairCallback {
         // The results holder
-        private HashMap<ImmutablePair<Integer, Integer>, Double> matrix;
+        private final PairSink sink;
+        // The parsed addresses and IDs of records
+        private final USAddress[] addresses;
+        private final int[] ids;
+        // The filters of pairs of streets and cities which can not be similar
+        private final JaroFilter streets;
+        private final JaroFilter cities;
+        // Whether to compare only records with different ZIP codes
+        private final boolean differentZip;
+
+        AddressComparison(PairSink sink, USAddress[] addresses, int[] ids, JaroFilter streets, JaroFilter cities,
+                          boolean differentZip) {
+            this.sink = sink;
+            this.addresses = addresses;
+            this.ids = ids;
+            this.streets = streets;
+            this.cities = cities;
+            this.differentZip = differentZip;
+        }
+
+        @Override
+        public void compare(int first, int second) {
+            USAddress firstAddr = this.addresses[first];
+            USAddress secAddr = this.addresses[second];
+            if (this.differentZip && firstAddr.getZip5().equalsIgnoreCase(secAddr.getZip5())) {
+                // already compared within block of the same ZIP code
+                return;
+            }
+            if (!this.mayExceed(first, second)) {
+                return;
+            }
+            double proximity = USAddressParser.compare(firstAddr, secAddr, distance, threshold);
+            if (proximity > threshold) {
+                int fromId = this.ids[first];
+                int toId = this.ids[second];
+                // store pair ordered by ID
+                this.sink.put(Math.min(fromId, toId), Math.max(fromId, toId), proximity);
+            }
+        }
+
+        // checks by bounds of streets and cities similarity whether similarity of addresses may exceed threshold
+        private boolean mayExceed(int first, int second) {
+            double bound = USAddressParser.compareBound(this.addresses[first], this.addresses[second],
+                    this.streets.jaroBound(first, second), this.cities.jaroBound(first, second));
+            return bound + JaroFilter.EPSILON >= threshold;
+        }
+    }
+
+    class CalcDistanceOrderedTask extends RecursiveAction {
+        // The results holder
+        private final PairSink sink;
         // The input data set
         private final List<List<Object>> dataSet;
         // The start index (inclusive)
@@ -96,26 +311,27 @@ public class USAddressComparator {
         private char letter;
         private char secLetter;
 
-        public CalcDistanceOrderedTask(List<List<Object>> dataSet, int from, int lenght) {
+        public CalcDistanceOrderedTask(PairSink sink, List<List<Object>> dataSet, int from, int lenght) {
+            this.sink = sink;
             this.dataSet = dataSet;
             this.start = from;
             this.lenght = lenght;
         }
 
         @Override
-        protected HashMap<ImmutablePair<Integer, Integer>, Double> compute() {
+        protected void compute() {
             int dsSize = this.dataSet.size();
             if (dsSize > lenght) {
-                this.matrix = new HashMap<>(lenght, 0.75f);
                 // do processing
-                return this.computeDirect();
+                this.computeDirect();
+                return;
             }
 
             // split tasks by city name
-            return this.splitTasks();
+            this.splitTasks();
         }
 
-        private HashMap<ImmutablePair<Integer, Integer>, Double> splitTasks() {
+        private void splitTasks() {
             int dsSize = this.dataSet.size();
             ArrayList<CalcDistanceOrderedTask> tasks = new ArrayList<>();
             char letter = 'A';// start letter
@@ -130,18 +346,18 @@ public class USAddressComparator {
                 }
                 if (dsStartIndex == 0 && first == letter) {
                     // the very first block
-                    CalcDistanceOrderedTask task = new CalcDistanceOrderedTask(dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedTask task = new CalcDistanceOrderedTask(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                     task.letter = first;
                     dsStartIndex = i;
                     letter = first;
                 } else if (i == dsSize - 1) {
                     // the last block
-                    CalcDistanceOrderedTask task = new CalcDistanceOrderedTask(dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedTask task = new CalcDistanceOrderedTask(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                 } else if (first != letter && dsStartIndex > 0) {
                     // the next block start
-                    CalcDistanceOrderedTask task = new CalcDistanceOrderedTask(dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedTask task = new CalcDistanceOrderedTask(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                     task.letter = letter;
                     dsStartIndex = i;
@@ -150,61 +366,29 @@ public class USAddressComparator {
             }
 
             // start all tasks
-            this.matrix = new HashMap<>(lenght, 0.75f);
-            Collection<CalcDistanceOrderedTask> resTasks = invokeAll(tasks);
-            this.merge(resTasks);
-            return this.matrix;
-        }
-
-        private void merge(Collection<CalcDistanceOrderedTask> resTasks) {
-            for (CalcDistanceOrderedTask task : resTasks) {
-                this.matrix.putAll(task.getRawResult());
-                task.setRawResult(null);// release resources
-            }
+            invokeAll(tasks);
         }
 
-        private HashMap<ImmutablePair<Integer, Integer>, Double> computeDirect() {
+        private void computeDirect() {
             int to = this.start + this.lenght;
-            for (int i = this.start; i < to - 1; i++) {
-                List<Object> row = this.dataSet.get(i);
-                this.calcDistance((String) row.get(ADDR_INDEX), i, to);
+            // the addresses of block are parsed once and large blocks are compared by tiles in parallel
+            USAddress[] addresses = new USAddress[this.lenght];
+            int[] ids = new int[this.lenght];
+            for (int i = 0; i < this.lenght; i++) {
+                List<Object> row = this.dataSet.get(this.start + i);
+                addresses[i] = USAddressParser.parse((String) row.get(ADDR_INDEX));
+                ids[i] = ((Number) row.get(ID_INDEX)).intValue();
             }
+            AddressComparison comparison = new AddressComparison(this.sink, addresses, ids,
+                    streetsFilter(addresses), citiesFilter(addresses), false);
+            PairTilesAction.triangle(0, this.lenght, PairTilesAction.DEFAULT_TILE_SIZE, comparison).invoke();
             System.out.printf("################ Complete for letter: [%c] from: %d, to: %d\n", this.letter, this.start, to);
-
-            return this.matrix;
-        }
-
-        private void calcDistance(String firstAddrLine, int from, int to) {
-            System.out.printf("Proceed with: %s, start: %d, to: %d\n", firstAddrLine, from, to);
-            USAddress first = USAddressParser.parse(firstAddrLine);
-
-            int fromId = ((Double)dataSet.get(from).get(ID_INDEX)).intValue();
-            String secAddrLine;
-            List<Object>row;
-            for (int i = from + 1; i < to; i++) {
-                row = dataSet.get(i);
-                secAddrLine = (String) row.get(ADDR_INDEX);
-                USAddress second = USAddressParser.parse(secAddrLine);
-
-                int toId = ((Double) row.get(ID_INDEX)).intValue();
-                double proximity = USAddressParser.compare(first, second, distance);
-                if (proximity > threshold) {
-                    if (fromId > toId) {
-                        // rearrange
-                        int tmp = fromId;
-                        fromId = toId;
-                        toId = tmp;
-                    }
-                    this.matrix.put(new ImmutablePair(fromId, toId), proximity);
-//                    System.out.printf("%c - %d : %d : %.2f <> %s | %s\n", letter, fromId, toId, proximity, firstAddrLine, secAddrLine);
-                }
-            }
         }
     }
 
     class CalcDistanceOrderedSetAction extends RecursiveAction {
         // The results holder
-        private ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix;
+        private final PairSink sink;
         // The input data set
         private final List<List<Object>> dataSet;
         // The start index (inclusive)
@@ -216,8 +400,8 @@ public class USAddressComparator {
 
         private char letter;
 
-        public CalcDistanceOrderedSetAction(ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix, List<List<Object>> dataSet, int from, int lenght) {
-            this.matrix = matrix;
+        public CalcDistanceOrderedSetAction(PairSink sink, List<List<Object>> dataSet, int from, int lenght) {
+            this.sink = sink;
             this.dataSet = dataSet;
             this.start = from;
             this.lenght = lenght;
@@ -251,18 +435,18 @@ public class USAddressComparator {
                 char first = addr.charAt(0);
                 if (dsStartIndex == 0 && first == letter) {
                     // the very first block
-                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(matrix, dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                     task.letter = first;
                     dsStartIndex = i;
                     letter = first;
                 } else if (i == dsSize - 1) {
                     // the last block
-                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(matrix, dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                 } else if (first != letter && dsStartIndex > 0) {
                     // the next block start
-                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(matrix, dataSet, dsStartIndex, i - dsStartIndex);
+                    CalcDistanceOrderedSetAction task = new CalcDistanceOrderedSetAction(sink, dataSet, dsStartIndex, i - dsStartIndex);
                     tasks.add(task);
                     task.letter = letter;
                     dsStartIndex = i;
@@ -284,7 +468,7 @@ public class USAddressComparator {
 
         private void calcDistance(String firstAddrLine, int from, int to) {
             List<Object>row;
-            int fromId = ((Double)dataSet.get(from).get(ID_INDEX)).intValue();
+            int fromId = ((Number) dataSet.get(from).get(ID_INDEX)).intValue();
             USAddress first = this.addrCache.get(firstAddrLine);
             if (first == null) {
                 first = USAddressParser.parse(firstAddrLine);
@@ -300,16 +484,11 @@ public class USAddressComparator {
                     this.addrCache.put(secAddrLine, second);
                 }
 
-                int toId = ((Double) row.get(ID_INDEX)).intValue();
+                int toId = ((Number) row.get(ID_INDEX)).intValue();
                 double proximity = USAddressParser.compare(first, second, distance);
                 if (proximity > threshold) {
-                    if (fromId > toId) {
-                        // rearrange
-                        int tmp = fromId;
-                        fromId = toId;
-                        toId = tmp;
-                    }
-                    matrix.put(new ImmutablePair(fromId, toId), proximity);
+                    // store pair ordered by ID
+                    sink.put(Math.min(fromId, toId), Math.max(fromId, toId), proximity);
 //                    System.out.printf("%c - %d : %d : %.2f <> %s | %s\n", letter, fromId, toId, proximity, firstAddrLine, secAddrLine);
                 }
             }
@@ -319,7 +498,7 @@ public class USAddressComparator {
     // The action to compare address fields in parallel
     class BruteForceCompareAddressAction extends RecursiveAction {
         // The results holder
-        private ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix;
+        private final PairSink sink;
         // The input data set
         private final List<List<Object>> dataSet;
         // The start index (inclusive)
@@ -329,8 +508,8 @@ public class USAddressComparator {
         // The minimal size of one chunk
         private final int chunkSize;
 
-        BruteForceCompareAddressAction(ConcurrentHashMap<ImmutablePair<Integer, Integer>, Double> matrix, List<List<Object>> dataSet, int from, int lenght, int chunkSize) {
-            this.matrix = matrix;
+        BruteForceCompareAddressAction(PairSink sink, List<List<Object>> dataSet, int from, int lenght, int chunkSize) {
+            this.sink = sink;
             this.dataSet = dataSet;
             this.start = from;
             this.lenght = lenght;
@@ -346,8 +525,8 @@ public class USAddressComparator {
             // split further
             int split = this.lenght / 2;
 
-            invokeAll(new BruteForceCompareAddressAction(this.matrix, this.dataSet, this.start, split, this.chunkSize),
-                    new BruteForceCompareAddressAction(this.matrix, this.dataSet, this.start + split, this.lenght - split, this.chunkSize));
+            invokeAll(new BruteForceCompareAddressAction(this.sink, this.dataSet, this.start, split, this.chunkSize),
+                    new BruteForceCompareAddressAction(this.sink, this.dataSet, this.start + split, this.lenght - split, this.chunkSize));
         }
 
         private void computeDirect() {
@@ -361,20 +540,15 @@ public class USAddressComparator {
         private void calcDistance(String firstAddrLine, int from) {
             int size = this.dataSet.size();
             List<Object>row;
-            int fromId = ((Double)dataSet.get(from).get(ID_INDEX)).intValue();
+            int fromId = ((Number) dataSet.get(from).get(ID_INDEX)).intValue();
             for (int i = from + 1; i < size; i++) {
                 row = dataSet.get(i);
                 String secAddrLine = (String) row.get(ADDR_INDEX);
-                int toId = ((Double) row.get(ID_INDEX)).intValue();
+                int toId = ((Number) row.get(ID_INDEX)).intValue();
                 double proximity = USAddressParser.compare(firstAddrLine, secAddrLine, distance);
                 if (proximity > threshold) {
-                    if (fromId > toId) {
-                        // rearrange
-                        int tmp = fromId;
-                        fromId = toId;
-                        toId = tmp;
-                    }
-                    matrix.put(new ImmutablePair(fromId, toId), proximity);
+                    // store pair ordered by ID
+                    sink.put(Math.min(fromId, toId), Math.max(fromId, toId), proximity);
                     System.out.printf("%d : %d : %.2f <> %s | %s\n", fromId, toId, proximity, firstAddrLine, secAddrLine);
                 }
             }
@@ -401,8 +575,8 @@ public class USAddressComparator {
             int res = this.collator.compare(first.getCity(), second.getCity());
             if (res == 0) {
                 // compare by ID
-                Integer firstID = ((Double) o1.get(ID_INDEX)).intValue();
-                Integer secID = ((Double) o2.get(ID_INDEX)).intValue();
+                Integer firstID = ((Number) o1.get(ID_INDEX)).intValue();
+                Integer secID = ((Number) o2.get(ID_INDEX)).intValue();
                 res = firstID.compareTo(secID);
             }
 
@@ -5,11 +5,22 @@ package ua.nologin.mdm;/**
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import ua.nologin.mdm.converters.CSVLoader;
 import ua.nologin.mdm.converters.CSVSaver;
+import ua.nologin.mdm.converters.CompressedIO;
+import ua.nologin.mdm.converters.DataSetReader;
+import ua.nologin.mdm.converters.DataSetWriter;
+import ua.nologin.mdm.converters.MatrixCursor;
+import ua.nologin.mdm.converters.MatrixReader;
+import ua.nologin.mdm.converters.MatrixStore;
+import ua.nologin.mdm.converters.MatrixWriter;
+import ua.nologin.mdm.converters.SegmentedMatrixWriter;
+import ua.nologin.mdm.model.PairMatrix;
+import ua.nologin.mdm.model.PairScoreMap;
+import ua.nologin.mdm.model.SimilarityGraph;
 
 import java.io.*;
-import java.util.AbstractMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The IO utils to save/load data to/from disk
@@ -17,24 +28,225 @@ import java.util.Map;
  * @author Iaroslav Omelianenko
  */
 public class UtilsIO {
+    /** The extension of data set files saved in binary format. */
+    public static final String DATA_SET_EXT = ".bin";
 
-    public static void saveMatrix(Map<ImmutablePair<Integer, Integer>, Double> matrix, File file) throws IOException {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
-            out.writeObject(matrix);
+    // The types of fields used to decode CSV data sets
+    private static CSVSaver.FieldType[] dataSetSchema = Defines.DATA_SET_SCHEMA;
+    // The encoding of saved matrices entries
+    private static MatrixWriter.Encoding matrixEncoding = MatrixWriter.Encoding.PLAIN;
+
+    /**
+     * Sets the types of fields to be used to decode loaded CSV data sets.
+     *
+     * @param schema the types of fields in order of columns or null to guess types from values
+     */
+    public static void setDataSetSchema(CSVSaver.FieldType[] schema) {
+        dataSetSchema = schema;
+    }
+
+    /**
+     * Sets the encoding of entries for saved matrices. The delta encodings store entries sorted by pair of IDs.
+     *
+     * @param encoding the matrix entries encoding
+     */
+    public static void setMatrixEncoding(MatrixWriter.Encoding encoding) {
+        matrixEncoding = encoding;
+    }
+
+    /**
+     * Saves similarity matrix in compact binary format of {@link MatrixWriter}.
+     *
+     * @param matrix the matrix to save
+     * @param file   the output file
+     * @throws IOException if failed to write matrix
+     */
+    public static void saveMatrix(PairScoreMap matrix, File file) throws IOException {
+        saveMatrix(matrix.toPairMatrix(), file);
+    }
+
+    /**
+     * Saves similarity matrix in compact binary format of {@link MatrixWriter}. The entries of matrix will be
+     * sorted if delta encoding is used.
+     *
+     * @param matrix the matrix to save
+     * @param file   the output file
+     * @throws IOException if failed to write matrix
+     */
+    public static void saveMatrix(PairMatrix matrix, File file) throws IOException {
+        if (matrixEncoding != MatrixWriter.Encoding.PLAIN) {
+            matrix.parallelSort();
+        }
+        try (MatrixWriter writer = new MatrixWriter(file, matrixEncoding)) {
+            writer.write(matrix);
+        }
+    }
+
+    /**
+     * Opens streaming writer of similarity matrix. The comparators tasks may put found pairs into it directly
+     * from multiple threads. The matrix file is complete after writer closed. If output file is existing directory
+     * the pairs are appended into {@link MatrixStore} in it, compacted in background while writing.
+     *
+     * @param file the output file or store directory
+     * @return the streaming writer
+     * @throws IOException if store directory can not be opened
+     */
+    public static SegmentedMatrixWriter openMatrixWriter(File file) throws IOException {
+        if (MatrixStore.isStore(file)) {
+            MatrixStore store = new MatrixStore(file, matrixEncoding);
+            store.startCompactor(MatrixStore.COMPACTION_PERIOD, TimeUnit.SECONDS);
+            return new SegmentedMatrixWriter(store, SegmentedMatrixWriter.BUFFER_SIZE);
         }
+        return new SegmentedMatrixWriter(file, matrixEncoding, SegmentedMatrixWriter.BUFFER_SIZE);
     }
 
-    public static Map<ImmutablePair<Integer, Integer>, Double> loadMatrix(File file) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-            Map<ImmutablePair<Integer, Integer>, Double> matrix = (Map<ImmutablePair<Integer, Integer>, Double>) in.readObject();
-            System.out.printf("Loaded matrix with %d rows\n", matrix.size());
+    /**
+     * Opens similarity matrix file or store for streaming reading of entries one by one.
+     *
+     * @param file the matrix file or store directory
+     * @return the cursor positioned before the first entry
+     * @throws IOException if file can not be opened
+     */
+    public static MatrixCursor openMatrix(File file) throws IOException {
+        if (MatrixStore.isStore(file)) {
+            return new MatrixStore(file, matrixEncoding).openCursor();
+        }
+        return new MatrixReader(file);
+    }
+
+    /**
+     * Loads similarity matrix saved either in binary format or with Java serialization by previous versions.
+     *
+     * @param file the matrix file
+     * @return the loaded matrix
+     * @throws IOException            if failed to read matrix
+     * @throws ClassNotFoundException if serialized matrix has unknown classes
+     */
+    public static PairScoreMap loadMatrix(File file) throws IOException, ClassNotFoundException {
+        PairMatrix pairs = loadMatrixArrays(file);
+        int size = pairs.size();
+        PairScoreMap matrix = new PairScoreMap(size);
+        for (int i = 0; i < size; i++) {
+            matrix.put(pairs.getKey(i), pairs.getScore(i));
+        }
+        System.out.printf("Loaded matrix with %d rows\n", matrix.size());
+        return matrix;
+    }
+
+    /**
+     * Loads similarity matrix as graph of records with compact per record access to pairs.
+     *
+     * @param file the matrix file or store directory
+     * @return the loaded graph
+     * @throws IOException            if failed to read matrix
+     * @throws ClassNotFoundException if serialized matrix has unknown classes
+     */
+    public static SimilarityGraph loadGraph(File file) throws IOException, ClassNotFoundException {
+        SimilarityGraph graph = SimilarityGraph.build(loadMatrixArrays(file));
+        System.out.printf("Loaded matrix with %d rows\n", graph.getEdgesCount());
+        return graph;
+    }
+
+    /**
+     * Loads similarity matrix straight into primitive arrays.
+     *
+     * @param file the matrix file or store directory
+     * @return the loaded matrix
+     * @throws IOException            if failed to read matrix
+     * @throws ClassNotFoundException if serialized matrix has unknown classes
+     */
+    public static PairMatrix loadMatrixArrays(File file) throws IOException, ClassNotFoundException {
+        if (MatrixStore.isStore(file)) {
+            PairMatrix matrix = new PairMatrix();
+            try (MatrixCursor cursor = openMatrix(file)) {
+                while (cursor.next()) {
+                    matrix.add(cursor.getLeft(), cursor.getRight(), cursor.getScore());
+                }
+            }
+            return matrix;
+        }
+        if (!MatrixReader.isMatrixFile(file)) {
+            // convert serialized matrix
+            Map<ImmutablePair<Integer, Integer>, Double> map = loadSerializedMatrix(file);
+            PairMatrix matrix = new PairMatrix(map.size());
+            for (Map.Entry<ImmutablePair<Integer, Integer>, Double> entry : map.entrySet()) {
+                matrix.add(entry.getKey().left, entry.getKey().right, entry.getValue());
+            }
             return matrix;
         }
+        try (MatrixReader reader = new MatrixReader(file)) {
+            return reader.readAll();
+        }
+    }
+
+    private static Map<ImmutablePair<Integer, Integer>, Double> loadSerializedMatrix(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(CompressedIO.openInput(file))) {
+            return (Map<ImmutablePair<Integer, Integer>, Double>) in.readObject();
+        }
     }
 
     public static List<List<Object>> loadCSVAsDataSet(File input) throws IOException {
+        return loadCSVAsDataSet(input, (int[]) null);
+    }
+
+    public static List<List<Object>> loadDataSet(File input) throws IOException {
+        return loadDataSet(input, (int[]) null);
+    }
+
+    /**
+     * Loads data set saved either in binary format of {@link DataSetWriter} or as CSV, decoding only specified
+     * columns. The values of other columns are left as null.
+     *
+     * @param input   the input file with data set
+     * @param columns the indices of columns to be decoded or null to decode all columns
+     * @return the loaded data set
+     * @throws IOException if failed to load data set
+     */
+    public static List<List<Object>> loadDataSet(File input, int... columns) throws IOException {
+        if (!DataSetReader.isDataSetFile(input)) {
+            return loadCSVAsDataSet(input, columns);
+        }
+        List<List<Object>> dataSet;
+        try (DataSetReader reader = new DataSetReader(input)) {
+            reader.setRequiredColumns(columns);
+            dataSet = reader.getDataSet();
+        }
+        System.out.printf("Loaded data set with %d rows\n", dataSet.size());
+        return dataSet;
+    }
+
+    /**
+     * Saves data set in binary format of {@link DataSetWriter} if file has <code>.bin</code> extension or as CSV
+     * otherwise. The compression extension following it, like <code>.bin.gz</code>, turns on compression.
+     *
+     * @param dataSet the data set to save
+     * @param types   the types of fields
+     * @param file    the output file
+     * @throws IOException if failed to save data set
+     */
+    public static void saveDataSet(List<List<Object>> dataSet, CSVSaver.FieldType[] types, File file) throws IOException {
+        if (!CompressedIO.stripExtension(file).endsWith(DATA_SET_EXT)) {
+            saveCSVDataSet(dataSet, types, file);
+            return;
+        }
+        try (DataSetWriter writer = new DataSetWriter(file, types)) {
+            writer.write(dataSet);
+        }
+    }
+
+    /**
+     * Loads CSV data set decoding only specified columns. The values of other columns are left as null.
+     *
+     * @param input   the input file with CSV data set
+     * @param columns the indices of columns to be decoded or null to decode all columns
+     * @return the loaded data set
+     * @throws IOException if failed to load data set
+     */
+    public static List<List<Object>> loadCSVAsDataSet(File input, int... columns) throws IOException {
         List<List<Object>> dataSet;
         try (CSVLoader loader = new CSVLoader()) {
+            loader.setFieldTypes(dataSetSchema);
+            loader.setRequiredColumns(columns);
             loader.setSource(input);
             dataSet = loader.getDataSet();
         }
@@ -42,6 +254,21 @@ public class UtilsIO {
         return dataSet;
     }
 
+    /**
+     * Opens the CSV data set for incremental reading row by row with {@link CSVLoader#getNextRow()}. The caller
+     * is responsible to close returned loader.
+     *
+     * @param input the input file with CSV data set
+     * @return the loader positioned at the first row of data set
+     * @throws IOException if source can not be opened
+     */
+    public static CSVLoader openCSVDataSet(File input) throws IOException {
+        CSVLoader loader = new CSVLoader();
+        loader.setFieldTypes(dataSetSchema);
+        loader.setSource(input);
+        return loader;
+    }
+
     public static void saveCSVDataSet(List<List<Object>> dataSet, CSVSaver.FieldType[] types, File file) throws IOException {
         try (CSVSaver saver = new CSVSaver()) {
             saver.setFile(file);
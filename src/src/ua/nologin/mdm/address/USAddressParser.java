@@ -4,6 +4,7 @@ package ua.nologin.mdm.address;/**
 
 import com.aliasi.util.Proximity;
 import org.apache.commons.lang3.tuple.ImmutablePair;
+import ua.nologin.mdm.JaroWinkler;
 
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -16,6 +17,9 @@ public class USAddressParser {
 
     private static ConcurrentHashMap<String, USAddress> addrCache = new ConcurrentHashMap<>();
 
+    // The slack of threshold covering rounding errors of similarity calculation
+    private static final double EPSILON = 1e-9;
+
     // 1635 CLIFRON RD. NE, BUILDING A, ATLANTA, GA 30322-0001, US
     public static USAddress parse(String addLine) {
         String[] tokens = addLine.split(",");
@@ -39,6 +43,50 @@ public class USAddressParser {
         return res;
     }
 
+    /**
+     * Compares addresses if their similarity is not below specified threshold. The cities, states and ZIP codes are
+     * compared first, so comparison of streets stops as soon as they can not make addresses similar enough. The
+     * similarity is the same as calculated by {@link #compare(USAddress, USAddress, Proximity)}.
+     *
+     * @param first     the first address
+     * @param second    the second address
+     * @param proximity the proximity analyzer
+     * @param threshold the minimal similarity of interest
+     * @return the similarity if it is at least threshold or negative value otherwise
+     */
+    public static double compare(USAddress first, USAddress second, JaroWinkler proximity, double threshold) {
+        double cProx = proximity.proximity(first.getCity(), second.getCity());
+        double stateProx = first.getState().equalsIgnoreCase(second.getState()) ? 1 : 0;
+        double zip5Prox = first.getZip5().equalsIgnoreCase(second.getZip5()) ? 1 : 0;
+        // the minimal similarity of streets to reach threshold
+        double minStreet = (threshold - cProx * .25 - stateProx * .25 - zip5Prox * .05) / .45 - EPSILON;
+        double sProx = proximity.proximityAtLeast(first.getStreetWithNumber(), second.getStreetWithNumber(), minStreet);
+        if (sProx < 0) {
+            return -1;
+        }
+
+        double res = sProx * .45 + cProx * .25 + stateProx * .25 + zip5Prox * .05;
+        return res >= threshold ? res : -1;
+    }
+
+    /**
+     * Returns the upper bound of similarity of addresses calculated by {@link #compare(USAddress, USAddress, Proximity)}
+     * with provided upper bounds of similarity of streets and cities. It allows to skip pairs of addresses which
+     * can not reach threshold without comparing strings.
+     *
+     * @param first       the first address
+     * @param second      the second address
+     * @param streetBound the upper bound of similarity of streets
+     * @param cityBound   the upper bound of similarity of cities
+     * @return the upper bound of similarity of addresses
+     */
+    public static double compareBound(USAddress first, USAddress second, double streetBound, double cityBound) {
+        double stateProx = first.getState().equalsIgnoreCase(second.getState()) ? 1 : 0;
+        double zip5Prox = first.getZip5().equalsIgnoreCase(second.getZip5()) ? 1 : 0;
+
+        return streetBound * .45 + cityBound * .25 + stateProx * .25 + zip5Prox * .05;
+    }
+
     /**
      * Compares provided address lines and returns probability that it is the same address. This method employs heavy caching
      * of intermediate results.
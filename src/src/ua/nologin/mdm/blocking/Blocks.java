@@ -0,0 +1,101 @@
+package ua.nologin.mdm.blocking;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The blocking of records by keys. The records are ordered by keys once, so each block of records with equal keys
+ * is a contiguous range of the order. The pairs of blocks are either collected as candidates or visited by tiles in
+ * parallel.
+ */
+public class Blocks {
+
+    private Blocks() {
+    }
+
+    /**
+     * Returns indices of records ordered by keys and then by IDs.
+     *
+     * @param keys the keys of records
+     * @param ids  the IDs of records
+     * @return the ordered indices of records
+     */
+    public static int[] order(String[] keys, int[] ids) {
+        int size = keys.length;
+        Integer[] sorted = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = i;
+        }
+        Arrays.parallelSort(sorted, (a, b) -> {
+            int res = keys[a].compareTo(keys[b]);
+            return res != 0 ? res : Integer.compare(ids[a], ids[b]);
+        });
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = sorted[i];
+        }
+        return order;
+    }
+
+    /**
+     * Adds all pairs of records indices within blocks of records with equal keys to the provided matrix. The record
+     * may have several keys, i.e. several entries, and joins block of each of them, so the same pair may be added
+     * more than once. The entries with empty keys carry no blocking information, so they are not paired at all.
+     *
+     * @param keys    the keys of entries
+     * @param records the indices of records of entries
+     * @param order   the indices of entries ordered by keys
+     * @param pairs   the matrix to add pairs ordered by records indices into
+     * @return the number of blocks with at least two entries
+     */
+    public static int pairs(String[] keys, int[] records, int[] order, PairMatrix pairs) {
+        int blocks = 0;
+        int blockStart = 0;
+        for (int i = 1; i <= order.length; i++) {
+            if (i == order.length || !keys[order[i]].equals(keys[order[blockStart]])) {
+                if (i - blockStart > 1 && !keys[order[blockStart]].isEmpty()) {
+                    for (int first = blockStart; first < i; first++) {
+                        for (int second = first + 1; second < i; second++) {
+                            int left = records[order[first]];
+                            int right = records[order[second]];
+                            if (left != right) {
+                                pairs.add(Math.min(left, right), Math.max(left, right), 0);
+                            }
+                        }
+                    }
+                    blocks++;
+                }
+                blockStart = i;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Creates tasks to visit all pairs of records within blocks of records with equal keys. The records with empty
+     * keys carry no blocking information, so they are not compared at all.
+     *
+     * @param keys     the keys of records
+     * @param order    the indices of records ordered by keys
+     * @param callback the callback to compare pairs of records indices
+     * @return the tasks, one per block of at least two records
+     */
+    public static List<PairTilesAction> tiles(String[] keys, int[] order, PairCallback callback) {
+        // the tiles visit positions in order which are mapped to records indices
+        PairCallback byOrder = (first, second) -> callback.compare(order[first], order[second]);
+        List<PairTilesAction> tasks = new ArrayList<>();
+        int blockStart = 0;
+        for (int i = 1; i <= order.length; i++) {
+            if (i == order.length || !keys[order[i]].equals(keys[order[blockStart]])) {
+                if (i - blockStart > 1 && !keys[order[blockStart]].isEmpty()) {
+                    tasks.add(PairTilesAction.triangle(blockStart, i, PairTilesAction.DEFAULT_TILE_SIZE, byOrder));
+                }
+                blockStart = i;
+            }
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,70 @@
+package ua.nologin.mdm.blocking;
+
+import ua.nologin.mdm.model.SimilarityGraph;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The task to visit all candidate pairs of records using Fork-Join threads. The candidates are edges of graph over
+ * records indices, so each pair is visited once whatever pair source found it, and the range of left records is
+ * split in halves until it is not longer than chunk size.
+ */
+public class CandidatePairsAction extends RecursiveAction {
+    // The candidate pairs of records indices
+    private final SimilarityGraph candidates;
+    // The callback to compare pairs
+    private final PairCallback callback;
+    // The first left record index (inclusive)
+    private final int start;
+    // The number of left records to process
+    private final int lenght;
+    // The minimal size of one chunk
+    private final int chunkSize;
+
+    /**
+     * Creates task to visit all edges of candidates graph.
+     *
+     * @param candidates the graph of candidate pairs of records indices
+     * @param chunkSize  the maximal number of left records processed by one task, at least 1
+     * @param callback   the callback to compare pairs
+     */
+    public CandidatePairsAction(SimilarityGraph candidates, int chunkSize, PairCallback callback) {
+        this(candidates, callback, candidates.getFirstId(), candidates.getLastId() - candidates.getFirstId() + 1,
+                chunkSize);
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size should be at least 1");
+        }
+    }
+
+    private CandidatePairsAction(SimilarityGraph candidates, PairCallback callback, int start, int lenght,
+                                 int chunkSize) {
+        this.candidates = candidates;
+        this.callback = callback;
+        this.start = start;
+        this.lenght = lenght;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void compute() {
+        if (this.lenght <= this.chunkSize) {
+            this.computeDirect();
+            return;
+        }
+        // split further
+        int split = this.lenght / 2;
+
+        invokeAll(new CandidatePairsAction(this.candidates, this.callback, this.start, split, this.chunkSize),
+                new CandidatePairsAction(this.candidates, this.callback, this.start + split, this.lenght - split,
+                        this.chunkSize));
+    }
+
+    private void computeDirect() {
+        int to = this.start + this.lenght;
+        for (int first = this.start; first < to; first++) {
+            for (int edge = this.candidates.start(first); edge < this.candidates.end(first); edge++) {
+                this.callback.compare(first, this.candidates.getNeighbor(edge));
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ua.nologin.mdm.blocking;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The action to run all provided tasks in parallel and to wait for all of them, so independent tasks are started
+ * with one invocation of pool.
+ */
+public class InvokeAllAction extends RecursiveAction {
+    // The tasks to run
+    private final Collection<? extends ForkJoinTask<?>> tasks;
+
+    public InvokeAllAction(Collection<? extends ForkJoinTask<?>> tasks) {
+        this.tasks = tasks;
+    }
+
+    public InvokeAllAction(ForkJoinTask<?>... tasks) {
+        this(Arrays.asList(tasks));
+    }
+
+    @Override
+    protected void compute() {
+        invokeAll(tasks);
+    }
+}
@@ -0,0 +1,97 @@
+package ua.nologin.mdm.blocking;
+
+/**
+ * The pre-filter of pairs of strings which can not reach the threshold of Jaro or Jaro-Winkler similarity. The Jaro
+ * similarity of strings with lengths <code>l1</code> and <code>l2</code> and <code>m</code> matching characters is
+ * at most <code>(m/l1 + m/l2 + 1)/3</code>, while the number of matching characters is limited by the length of
+ * shorter string and by the overlap of characters multisets of strings. So the lengths, characters presence masks
+ * and characters histograms of strings are computed once and the bound of each pair is checked before calculating
+ * similarity itself. The characters are counted by 64 classes of their low bits, which only loosens the bound.
+ */
+public class JaroFilter {
+    /** The slack of bounds covering rounding errors of similarity calculation. */
+    public static final double EPSILON = 1e-9;
+
+    // The number of characters classes
+    private static final int CLASSES = 64;
+
+    // The lengths of strings
+    private final int[] lengths;
+    // The masks of characters classes present in strings
+    private final long[] masks;
+    // The numbers of characters of each class in strings, CLASSES entries per string
+    private final char[] histograms;
+
+    /**
+     * Computes profiles of provided strings.
+     *
+     * @param strings the strings to be compared
+     */
+    public JaroFilter(CharSequence[] strings) {
+        int size = strings.length;
+        this.lengths = new int[size];
+        this.masks = new long[size];
+        this.histograms = new char[size * CLASSES];
+        for (int i = 0; i < size; i++) {
+            CharSequence str = strings[i];
+            int length = str.length();
+            long mask = 0;
+            int offset = i * CLASSES;
+            for (int j = 0; j < length; j++) {
+                int c = str.charAt(j) & (CLASSES - 1);
+                mask |= 1L << c;
+                if (histograms[offset + c] < Character.MAX_VALUE) {
+                    histograms[offset + c]++;
+                }
+            }
+            this.lengths[i] = length;
+            this.masks[i] = mask;
+        }
+    }
+
+    /**
+     * Returns the upper bound of Jaro similarity of strings.
+     *
+     * @param first  the index of the first string
+     * @param second the index of the second string
+     * @return the upper bound of similarity
+     */
+    public double jaroBound(int first, int second) {
+        int l1 = this.lengths[first];
+        int l2 = this.lengths[second];
+        if (l1 == 0 || l2 == 0) {
+            // the empty strings are not filtered
+            return 1.0;
+        }
+        int matches = Math.min(l1, l2);
+        if (matches <= Character.MAX_VALUE) {
+            // the histograms of longer strings may be saturated
+            long common = this.masks[first] & this.masks[second];
+            int firstOffset = first * CLASSES;
+            int secondOffset = second * CLASSES;
+            int overlap = 0;
+            while (common != 0 && overlap < matches) {
+                int c = Long.numberOfTrailingZeros(common);
+                overlap += Math.min(this.histograms[firstOffset + c], this.histograms[secondOffset + c]);
+                common &= common - 1;
+            }
+            if (overlap == 0) {
+                return 0;
+            }
+            matches = Math.min(matches, overlap);
+        }
+        return (matches / (double) l1 + matches / (double) l2 + 1.0) / 3.0;
+    }
+
+    /**
+     * Checks whether Jaro similarity of strings may reach specified value.
+     *
+     * @param first   the index of the first string
+     * @param second  the index of the second string
+     * @param minJaro the minimal Jaro similarity
+     * @return <code>false</code> if similarity is below minimal value for sure
+     */
+    public boolean mayReach(int first, int second, double minJaro) {
+        return this.jaroBound(first, second) + EPSILON >= minJaro;
+    }
+}
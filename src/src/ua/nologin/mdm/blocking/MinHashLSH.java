@@ -0,0 +1,249 @@
+package ua.nologin.mdm.blocking;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The locality sensitive hashing of feature sets with MinHash signatures. The signature of each set consists of
+ * <code>bands * rows</code> minimal hash values, and the sets which have equal all rows of at least one band
+ * become candidate pairs. The probability of pair with Jaccard similarity <code>s</code> to become candidate is
+ * <code>1 - (1 - s^rows)^bands</code>, so more rows per band cut off dissimilar pairs sharper while more bands
+ * increase recall. The candidates are found by sorting bucket keys of records band by band, so the number of
+ * examined pairs is proportional to the number of candidates rather than square of records number.
+ */
+public class MinHashLSH {
+    /** The default number of bands. */
+    public static final int DEFAULT_BANDS = 25;
+    /** The default number of rows per band. */
+    public static final int DEFAULT_ROWS = 4;
+
+    // The minimal number of records to compute signatures by one task
+    private static final int CHUNK_SIZE = 4096;
+    // The seed of hash functions
+    private static final long SEED = 0x5DEECE66DL;
+
+    // The number of bands
+    private final int bands;
+    // The number of rows per band
+    private final int rows;
+    // The seeds of hash functions, one per signature value
+    private final long[] seeds;
+
+    /**
+     * Creates hashing with specified number of bands and rows per band.
+     *
+     * @param bands the number of bands
+     * @param rows  the number of rows per band
+     */
+    public MinHashLSH(int bands, int rows) {
+        if (bands < 1 || rows < 1) {
+            throw new IllegalArgumentException("Wrong LSH parameters: bands " + bands + ", rows " + rows);
+        }
+        this.bands = bands;
+        this.rows = rows;
+        this.seeds = new long[bands * rows];
+        long seed = SEED;
+        for (int i = 0; i < seeds.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            seeds[i] = mix(seed);
+        }
+    }
+
+    /**
+     * Returns the hashes of tokens of text to be used as features of set. The tokens are separated by
+     * white spaces or commas and tokens shorter than specified length are skipped.
+     *
+     * @param text      the text to split
+     * @param minLength the minimal length of token
+     * @return the hashes of tokens
+     */
+    public static long[] tokens(String text, int minLength) {
+        String[] tokens = text.toUpperCase().split("[\\s,]+");
+        long[] result = new long[tokens.length];
+        int count = 0;
+        for (String token : tokens) {
+            if (token.length() >= minLength) {
+                long hash = 0;
+                for (int i = 0; i < token.length(); i++) {
+                    hash = hash * 31 + token.charAt(i);
+                }
+                result[count++] = mix(hash);
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Computes MinHash signature of features set.
+     *
+     * @param features the hashes of features, may contain duplicates
+     * @return the signature with <code>bands * rows</code> values or null if set is empty
+     */
+    public int[] signature(long[] features) {
+        if (features.length == 0) {
+            return null;
+        }
+        int[] signature = new int[seeds.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (long feature : features) {
+            for (int i = 0; i < seeds.length; i++) {
+                int value = (int) (mix(feature ^ seeds[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Computes signatures of features sets in parallel.
+     *
+     * @param features the features sets
+     * @return the signatures in order of features sets
+     */
+    public int[][] signatures(long[][] features) {
+        int[][] signatures = new int[features.length][];
+        ForkJoinPool pool = new ForkJoinPool();
+        pool.invoke(new SignaturesAction(features, signatures, 0, features.length));
+        pool.shutdown();
+        return signatures;
+    }
+
+    /**
+     * Finds candidate pairs of sets which have equal signature values in all rows of at least one band. Each pair
+     * is reported once. The empty sets (null signatures) have no candidates.
+     *
+     * @param signatures the signatures of sets
+     * @return the candidate pairs of sets indices (lower index first) with estimated Jaccard similarity as score
+     */
+    public PairMatrix candidates(int[][] signatures) {
+        PairMatrix candidates = new PairMatrix(signatures.length);
+        int size = 0;
+        for (int[] signature : signatures) {
+            if (signature != null) {
+                size++;
+            }
+        }
+        long[] entries = new long[size];
+        for (int band = 0; band < bands; band++) {
+            // the bucket key in high bits and index of set in low bits
+            int n = 0;
+            for (int i = 0; i < signatures.length; i++) {
+                if (signatures[i] != null) {
+                    entries[n++] = ((long) bucket(signatures[i], band) << 32) | i;
+                }
+            }
+            Arrays.parallelSort(entries);
+
+            int bucketStart = 0;
+            for (int i = 1; i <= size; i++) {
+                if (i == size || (entries[i] >>> 32) != (entries[bucketStart] >>> 32)) {
+                    this.addPairs(signatures, entries, bucketStart, i, band, candidates);
+                    bucketStart = i;
+                }
+            }
+        }
+        return candidates;
+    }
+
+    // adds the pairs of bucket which collide for the first time in specified band
+    private void addPairs(int[][] signatures, long[] entries, int from, int to, int band, PairMatrix candidates) {
+        for (int i = from; i < to - 1; i++) {
+            int first = (int) entries[i];
+            for (int j = i + 1; j < to; j++) {
+                int second = (int) entries[j];
+                // the hash of bucket may collide for different rows
+                if (!equalRows(signatures[first], signatures[second], band)) {
+                    continue;
+                }
+                boolean reported = false;
+                for (int b = 0; b < band && !reported; b++) {
+                    reported = equalRows(signatures[first], signatures[second], b);
+                }
+                if (!reported) {
+                    candidates.add(first, second, similarity(signatures[first], signatures[second]));
+                }
+            }
+        }
+    }
+
+    private boolean equalRows(int[] first, int[] second, int band) {
+        int from = band * rows;
+        for (int r = from; r < from + rows; r++) {
+            if (first[r] != second[r]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates Jaccard similarity of sets by their signatures.
+     *
+     * @param first  the signature of the first set
+     * @param second the signature of the second set
+     * @return the fraction of equal signature values
+     */
+    public static double similarity(int[] first, int[] second) {
+        int equal = 0;
+        for (int i = 0; i < first.length; i++) {
+            if (first[i] == second[i]) {
+                equal++;
+            }
+        }
+        return equal / (double) first.length;
+    }
+
+    // returns the hash of rows of band
+    private int bucket(int[] signature, int band) {
+        long hash = band;
+        int from = band * rows;
+        for (int r = from; r < from + rows; r++) {
+            hash = hash * 0x9E3779B97F4A7C15L + signature[r];
+        }
+        return (int) (mix(hash) >>> 32);
+    }
+
+    // the finalizer of MurmurHash3 spreading bits of value
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    // Task to compute signatures of range of features sets recursively using Fork-Join threads
+    private class SignaturesAction extends RecursiveAction {
+        private final long[][] features;
+        private final int[][] signatures;
+        // The range of sets
+        private final int from;
+        private final int to;
+
+        SignaturesAction(long[][] features, int[][] signatures, int from, int to) {
+            this.features = features;
+            this.signatures = signatures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    signatures[i] = signature(features[i]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SignaturesAction(features, signatures, from, mid),
+                    new SignaturesAction(features, signatures, mid, to));
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ua.nologin.mdm.blocking;
+
+/**
+ * The callback to compare pair of records given by their indices. The callbacks are invoked concurrently by
+ * Fork-Join threads, so implementations should put found pairs into thread safe receiver.
+ */
+public interface PairCallback {
+    /**
+     * Compares records at specified indices.
+     *
+     * @param first  the first index
+     * @param second the second index
+     */
+    void compare(int first, int second);
+}
@@ -0,0 +1,99 @@
+package ua.nologin.mdm.blocking;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The task to visit all pairs <code>i &lt; j</code> of range of indices using Fork-Join threads. The triangular
+ * iteration space of range is split recursively into two triangles along the diagonal and the rectangle between
+ * them, and rectangles are split in halves by the longer side, until tiles are not longer than tile size. So the
+ * tiles are scheduled independently and each pair is visited exactly once regardless of the size of range.
+ */
+public class PairTilesAction extends RecursiveAction {
+    /** The default maximal side of tile. */
+    public static final int DEFAULT_TILE_SIZE = 128;
+
+    // The callback to compare pairs
+    private final PairCallback callback;
+    // The maximal side of tile
+    private final int tileSize;
+    // Whether the tile is triangle on the diagonal, i.e. rows and columns are the same range
+    private final boolean triangle;
+    // The range of the first indices (inclusive - exclusive)
+    private final int rowFrom;
+    private final int rowTo;
+    // The range of the second indices (inclusive - exclusive)
+    private final int colFrom;
+    private final int colTo;
+
+    private PairTilesAction(PairCallback callback, int tileSize, boolean triangle, int rowFrom, int rowTo,
+                            int colFrom, int colTo) {
+        this.callback = callback;
+        this.tileSize = tileSize;
+        this.triangle = triangle;
+        this.rowFrom = rowFrom;
+        this.rowTo = rowTo;
+        this.colFrom = colFrom;
+        this.colTo = colTo;
+    }
+
+    /**
+     * Creates task to visit all pairs <code>i &lt; j</code> of indices from specified range.
+     *
+     * @param from     the start index (inclusive)
+     * @param to       the end index (exclusive)
+     * @param tileSize the maximal side of tile, at least 1
+     * @param callback the callback to compare pairs
+     * @return the task
+     */
+    public static PairTilesAction triangle(int from, int to, int tileSize, PairCallback callback) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size should be at least 1");
+        }
+        return new PairTilesAction(callback, tileSize, true, from, to, from, to);
+    }
+
+    /**
+     * @return the number of pairs visited by this task
+     */
+    public long pairs() {
+        long rows = this.rowTo - this.rowFrom;
+        return this.triangle ? rows * (rows - 1) / 2 : rows * (this.colTo - this.colFrom);
+    }
+
+    @Override
+    protected void compute() {
+        int rows = this.rowTo - this.rowFrom;
+        int cols = this.colTo - this.colFrom;
+        if (this.triangle) {
+            if (rows <= this.tileSize) {
+                for (int i = this.rowFrom; i < this.rowTo - 1; i++) {
+                    for (int j = i + 1; j < this.rowTo; j++) {
+                        this.callback.compare(i, j);
+                    }
+                }
+                return;
+            }
+            int split = (this.rowFrom + this.rowTo) >>> 1;
+            invokeAll(new PairTilesAction(this.callback, this.tileSize, true, this.rowFrom, split, this.rowFrom, split),
+                    new PairTilesAction(this.callback, this.tileSize, false, this.rowFrom, split, split, this.rowTo),
+                    new PairTilesAction(this.callback, this.tileSize, true, split, this.rowTo, split, this.rowTo));
+            return;
+        }
+
+        if (rows <= this.tileSize && cols <= this.tileSize) {
+            for (int i = this.rowFrom; i < this.rowTo; i++) {
+                for (int j = this.colFrom; j < this.colTo; j++) {
+                    this.callback.compare(i, j);
+                }
+            }
+        } else if (rows >= cols) {
+            int split = (this.rowFrom + this.rowTo) >>> 1;
+            invokeAll(new PairTilesAction(this.callback, this.tileSize, false, this.rowFrom, split, this.colFrom, this.colTo),
+                    new PairTilesAction(this.callback, this.tileSize, false, split, this.rowTo, this.colFrom, this.colTo));
+        } else {
+            int split = (this.colFrom + this.colTo) >>> 1;
+            invokeAll(new PairTilesAction(this.callback, this.tileSize, false, this.rowFrom, this.rowTo, this.colFrom, split),
+                    new PairTilesAction(this.callback, this.tileSize, false, this.rowFrom, this.rowTo, split, this.colTo));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package ua.nologin.mdm.blocking;
+
+/**
+ * The phonetic encoders of name tokens for blocking of records by sound of names. The blocking keys of name are
+ * the codes of its first and last tokens (given name and surname in either order), so records are blocked
+ * together regardless of spelling variants and order of name parts, even if one of the parts differs.
+ */
+public enum PhoneticEncoder {
+    /** The American Soundex: the first letter followed by three digits of consonants classes. */
+    SOUNDEX {
+        @Override
+        public String encode(String token) {
+            return soundex(token, false);
+        }
+    },
+    /**
+     * The Soundex with the first letter coded by its class as well, so names which differ in the first letter
+     * of the same sound (like CATHERINE and KATHRYN) get the same code.
+     */
+    SOUNDEX_CODED_INITIAL {
+        @Override
+        public String encode(String token) {
+            return soundex(token, true);
+        }
+    },
+    /** The New York State Identification and Intelligence System code. */
+    NYSIIS {
+        @Override
+        public String encode(String token) {
+            return nysiis(token);
+        }
+    };
+
+    // The Soundex classes of letters from A to Z, zero for letters which are not coded
+    private static final char[] SOUNDEX_CODES = "01230120022455012623010202".toCharArray();
+
+    /**
+     * Encodes one name token.
+     *
+     * @param token the token
+     * @return the phonetic code or empty string if token has no letters
+     */
+    public abstract String encode(String token);
+
+    /**
+     * Builds blocking keys of name from codes of its first and last tokens. The records sharing any of the keys are
+     * blocked together, so the keys do not depend on order of given name and surname.
+     *
+     * @param name the name
+     * @return the distinct codes of the first and the last tokens, empty if these tokens have no letters
+     */
+    public String[] keys(String name) {
+        String[] tokens = SortKey.tokens(name);
+        String first = encode(tokens[0]);
+        String last = tokens.length == 1 ? first : encode(tokens[tokens.length - 1]);
+        if (first.isEmpty() || first.equals(last)) {
+            return last.isEmpty() ? new String[0] : new String[]{last};
+        }
+        if (last.isEmpty()) {
+            return new String[]{first};
+        }
+        return new String[]{first, last};
+    }
+
+    // returns upper case letters of token
+    private static String letters(String token) {
+        StringBuilder buff = new StringBuilder(token.length());
+        for (int i = 0; i < token.length(); i++) {
+            char c = Character.toUpperCase(token.charAt(i));
+            if (c >= 'A' && c <= 'Z') {
+                buff.append(c);
+            }
+        }
+        return buff.toString();
+    }
+
+    private static String soundex(String token, boolean codedInitial) {
+        String str = letters(token);
+        if (str.isEmpty()) {
+            return str;
+        }
+        StringBuilder code = new StringBuilder(4);
+        char first = str.charAt(0);
+        char last = SOUNDEX_CODES[first - 'A'];
+        code.append(codedInitial ? last : first);
+        for (int i = 1; i < str.length() && code.length() < 4; i++) {
+            char c = str.charAt(i);
+            char digit = SOUNDEX_CODES[c - 'A'];
+            if (digit != '0' && digit != last) {
+                code.append(digit);
+            }
+            // H and W do not separate consonants of the same class, vowels do
+            if (c != 'H' && c != 'W') {
+                last = digit;
+            }
+        }
+        while (code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+
+    private static boolean isVowel(char c) {
+        return c == 'A' || c == 'E' || c == 'I' || c == 'O' || c == 'U';
+    }
+
+    private static String nysiis(String token) {
+        String str = letters(token);
+        if (str.isEmpty()) {
+            return str;
+        }
+        // translate the first characters
+        if (str.startsWith("MAC")) {
+            str = "MCC" + str.substring(3);
+        } else if (str.startsWith("KN")) {
+            str = "NN" + str.substring(2);
+        } else if (str.startsWith("K")) {
+            str = "C" + str.substring(1);
+        } else if (str.startsWith("PH") || str.startsWith("PF")) {
+            str = "FF" + str.substring(2);
+        } else if (str.startsWith("SCH")) {
+            str = "SSS" + str.substring(3);
+        }
+        // translate the last characters
+        if (str.endsWith("EE") || str.endsWith("IE")) {
+            str = str.substring(0, str.length() - 2) + "Y";
+        } else if (str.endsWith("DT") || str.endsWith("RT") || str.endsWith("RD") || str.endsWith("NT")
+                || str.endsWith("ND")) {
+            str = str.substring(0, str.length() - 2) + "D";
+        }
+
+        char[] chars = str.toCharArray();
+        StringBuilder code = new StringBuilder(chars.length);
+        code.append(chars[0]);
+        for (int i = 1; i < chars.length; i++) {
+            char c = chars[i];
+            char prev = chars[i - 1];
+            char next = i + 1 < chars.length ? chars[i + 1] : 0;
+            if (c == 'E' && next == 'V') {
+                chars[i] = 'A';
+                chars[i + 1] = 'F';
+            } else if (isVowel(c)) {
+                chars[i] = 'A';
+            } else if (c == 'Q') {
+                chars[i] = 'G';
+            } else if (c == 'Z') {
+                chars[i] = 'S';
+            } else if (c == 'M') {
+                chars[i] = 'N';
+            } else if (c == 'K') {
+                chars[i] = next == 'N' ? 'N' : 'C';
+            } else if (c == 'S' && next == 'C' && i + 2 < chars.length && chars[i + 2] == 'H') {
+                chars[i + 1] = 'S';
+                chars[i + 2] = 'S';
+            } else if (c == 'P' && next == 'H') {
+                chars[i] = 'F';
+                chars[i + 1] = 'F';
+            } else if (c == 'H' && (!isVowel(prev) || !isVowel(next))) {
+                chars[i] = prev;
+            } else if (c == 'W' && isVowel(prev)) {
+                chars[i] = prev;
+            }
+            if (chars[i] != code.charAt(code.length() - 1)) {
+                code.append(chars[i]);
+            }
+        }
+        // remove the last S, replace AY by Y and remove the last A
+        int length = code.length();
+        if (length > 1 && code.charAt(length - 1) == 'S') {
+            code.setLength(--length);
+        }
+        if (length > 2 && code.charAt(length - 2) == 'A' && code.charAt(length - 1) == 'Y') {
+            code.deleteCharAt(length - 2);
+            length--;
+        }
+        if (length > 1 && code.charAt(length - 1) == 'A') {
+            code.setLength(length - 1);
+        }
+        return code.toString();
+    }
+}
@@ -0,0 +1,237 @@
+package ua.nologin.mdm.blocking;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The inverted index from character q-grams of strings to indices of strings containing them. The strings are
+ * padded at both ends, so short strings and the first and last characters are covered by q-grams as well. The
+ * q-grams are packed into long values and the postings are stored in compressed sparse row layout, i.e. the
+ * indices of strings of each q-gram are stored contiguously in ascending order.
+ */
+public class QGramIndex {
+    /** The maximal supported length of q-gram. */
+    public static final int MAX_Q = 4;
+    // The character to pad strings with
+    private static final char PAD = '#';
+
+    // The distinct q-grams ids of each string
+    private final int[][] stringGrams;
+    // The start of postings of each q-gram id, the last entry is the number of postings
+    private final int[] offsets;
+    // The indices of strings in postings
+    private final int[] postings;
+
+    /**
+     * Builds index over provided strings.
+     *
+     * @param strings the strings to index
+     * @param q       the length of q-grams from 1 to {@link #MAX_Q}
+     */
+    public QGramIndex(String[] strings, int q) {
+        if (q < 1 || q > MAX_Q) {
+            throw new IllegalArgumentException("The length of q-grams should be from 1 to " + MAX_Q);
+        }
+        int size = strings.length;
+        long[][] grams = new long[size][];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            grams[i] = grams(strings[i], q);
+            total += grams[i].length;
+        }
+
+        // the dictionary of distinct q-grams
+        long[] dictionary = new long[total];
+        int n = 0;
+        for (long[] g : grams) {
+            System.arraycopy(g, 0, dictionary, n, g.length);
+            n += g.length;
+        }
+        Arrays.parallelSort(dictionary);
+        int distinct = 0;
+        for (int i = 0; i < total; i++) {
+            if (i == 0 || dictionary[i] != dictionary[i - 1]) {
+                dictionary[distinct++] = dictionary[i];
+            }
+        }
+
+        // the postings of each q-gram
+        this.stringGrams = new int[size][];
+        this.offsets = new int[distinct + 1];
+        for (int i = 0; i < size; i++) {
+            int[] ids = new int[grams[i].length];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = Arrays.binarySearch(dictionary, 0, distinct, grams[i][j]);
+                offsets[ids[j] + 1]++;
+            }
+            this.stringGrams[i] = ids;
+            grams[i] = null;
+        }
+        for (int g = 0; g < distinct; g++) {
+            offsets[g + 1] += offsets[g];
+        }
+        this.postings = new int[total];
+        int[] positions = Arrays.copyOf(offsets, distinct);
+        for (int i = 0; i < size; i++) {
+            for (int id : this.stringGrams[i]) {
+                postings[positions[id]++] = i;
+            }
+        }
+    }
+
+    /**
+     * Returns distinct q-grams of string padded at both ends and converted to upper case, packed into long values.
+     *
+     * @param str the string
+     * @param q   the length of q-grams from 1 to {@link #MAX_Q}
+     * @return the sorted distinct packed q-grams
+     */
+    public static long[] grams(String str, int q) {
+        StringBuilder buff = new StringBuilder(str.length() + 2 * (q - 1));
+        for (int i = 0; i < q - 1; i++) {
+            buff.append(PAD);
+        }
+        buff.append(str.toUpperCase());
+        for (int i = 0; i < q - 1; i++) {
+            buff.append(PAD);
+        }
+        int count = Math.max(buff.length() - q + 1, 0);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            long gram = 0;
+            for (int j = 0; j < q; j++) {
+                gram = (gram << 16) | buff.charAt(i + j);
+            }
+            result[i] = gram;
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || result[i] != result[i - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        return distinct == count ? result : Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * @return the number of indexed strings
+     */
+    public int size() {
+        return stringGrams.length;
+    }
+
+    /**
+     * @param index the index of string
+     * @return the number of distinct q-grams of string
+     */
+    public int gramsCount(int index) {
+        return stringGrams[index].length;
+    }
+
+    /**
+     * Finds the strings following specified string in index which share at least specified number of distinct
+     * q-grams with it.
+     *
+     * @param index     the index of string
+     * @param minCommon the minimal number of common q-grams
+     * @param counts    the scratch array of counters with length of index size, must be filled with zeros and
+     *                  is left filled with zeros
+     * @param result    the array to store indices of found strings with length of index size
+     * @return the number of found strings stored in result array in no particular order
+     */
+    public int candidates(int index, int minCommon, int[] counts, int[] result) {
+        // collect touched strings at the end of result array while counting
+        int touched = result.length;
+        for (int id : stringGrams[index]) {
+            int end = offsets[id + 1];
+            int p = Arrays.binarySearch(postings, offsets[id], end, index) + 1;
+            for (; p < end; p++) {
+                int other = postings[p];
+                if (counts[other]++ == 0) {
+                    result[--touched] = other;
+                }
+            }
+        }
+        int found = 0;
+        for (int t = touched; t < result.length; t++) {
+            int other = result[t];
+            if (counts[other] >= minCommon) {
+                result[found++] = other;
+            }
+            counts[other] = 0;
+        }
+        return found;
+    }
+
+    /**
+     * Finds all pairs of strings which share at least specified number of distinct q-grams using Fork-Join
+     * threads.
+     *
+     * @param minCommon the minimal number of common q-grams
+     * @return the pairs of strings indices (lower index first) with zero scores
+     */
+    public PairMatrix candidatePairs(int minCommon) {
+        int size = this.size();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return pool.invoke(new CandidatePairsTask(minCommon, 0, size, Math.max(size / 16, 1)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // The task to recursively find pairs of candidates of range of strings
+    private class CandidatePairsTask extends RecursiveTask<PairMatrix> {
+        // The minimal number of common q-grams
+        private final int minCommon;
+        // The start index (inclusive)
+        private final int start;
+        // The length of data train to process
+        private final int lenght;
+        // The minimal size of one chunk
+        private final int chunkSize;
+
+        CandidatePairsTask(int minCommon, int start, int lenght, int chunkSize) {
+            this.minCommon = minCommon;
+            this.start = start;
+            this.lenght = lenght;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected PairMatrix compute() {
+            if (this.lenght <= this.chunkSize) {
+                return this.computeDirect();
+            }
+            // split further
+            int split = this.lenght / 2;
+
+            CandidatePairsTask first = new CandidatePairsTask(this.minCommon, this.start, split, this.chunkSize);
+            CandidatePairsTask second = new CandidatePairsTask(this.minCommon, this.start + split,
+                    this.lenght - split, this.chunkSize);
+            invokeAll(first, second);
+            PairMatrix pairs = first.join();
+            pairs.addAll(second.join());
+            return pairs;
+        }
+
+        private PairMatrix computeDirect() {
+            PairMatrix pairs = new PairMatrix();
+            // the scratch arrays reused for all strings of chunk
+            int[] counts = new int[size()];
+            int[] result = new int[size()];
+            int to = this.start + this.lenght;
+            for (int i = this.start; i < to; i++) {
+                int found = candidates(i, this.minCommon, counts, result);
+                for (int j = 0; j < found; j++) {
+                    pairs.add(i, result[j], 0);
+                }
+            }
+            return pairs;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ua.nologin.mdm.blocking;
+
+/**
+ * The keys to order records by name for sorted neighborhood blocking. The names which differ at the beginning are
+ * far from each other in order by full name, so additional passes over records ordered by other keys bring them
+ * into the same window.
+ */
+public enum SortKey {
+    /** The name as is. */
+    FULL_NAME {
+        @Override
+        public String key(String name) {
+            return name;
+        }
+    },
+    /** The name tokens in reverse order. */
+    REVERSED_TOKENS {
+        @Override
+        public String key(String name) {
+            String[] tokens = tokens(name);
+            StringBuilder buff = new StringBuilder(name.length());
+            for (int i = tokens.length - 1; i >= 0; i--) {
+                buff.append(tokens[i]).append(' ');
+            }
+            return buff.toString().trim();
+        }
+    },
+    /** The last name token followed by other tokens in original order. */
+    LAST_NAME_FIRST {
+        @Override
+        public String key(String name) {
+            String[] tokens = tokens(name);
+            StringBuilder buff = new StringBuilder(name.length());
+            buff.append(tokens[tokens.length - 1]);
+            for (int i = 0; i < tokens.length - 1; i++) {
+                buff.append(' ').append(tokens[i]);
+            }
+            return buff.toString();
+        }
+    };
+
+    /**
+     * Builds the sort key of name.
+     *
+     * @param name the name
+     * @return the key to order records by
+     */
+    public abstract String key(String name);
+
+    /**
+     * Splits name into tokens separated by white spaces.
+     *
+     * @param name the name
+     * @return the name tokens, at least one
+     */
+    public static String[] tokens(String name) {
+        return name.trim().split("\\s+");
+    }
+}
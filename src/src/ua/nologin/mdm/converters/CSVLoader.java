@@ -3,20 +3,47 @@ package ua.nologin.mdm.converters;/**
  */
 
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
+import ua.nologin.mdm.blocking.InvokeAllAction;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * @author Iaroslav Omelianenko
  */
 public class CSVLoader implements Closeable{
+    /** The minimal size of source file to be parsed in parallel. */
+    public static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    /** The maximal size of chunk parsed by one parallel task. */
+    public static final long MAX_CHUNK_SIZE = 256 * 1024 * 1024;
+
     /** The reader for the data. */
     protected transient BufferedReader m_sourceReader;
     /** Holds the source of the data set. */
     protected File m_sourceFile;
+    /** The parser of the data. */
+    protected transient CSVParser m_parser;
+    /** The cursor over parsed records. */
+    protected transient Iterator<CSVRecord> m_records;
+    /** The reader of memory mapped source file. */
+    protected transient MappedCSVReader m_mappedReader;
+    /** The declared types of fields or null if types should be guessed. */
+    protected CSVSaver.FieldType[] m_fieldTypes;
+    /** Whether large source files should be parsed in parallel. */
+    protected boolean m_parallel = true;
+    /** The flags of columns to be decoded or null if all columns required. */
+    protected boolean[] m_requiredColumns;
 
     /**
      * Resets the Loader object and sets the source of the data set to be the
@@ -31,7 +58,9 @@ public class CSVLoader implements Closeable{
 
     /**
      * Resets the Loader object and sets the source of the data set to be
-     * the supplied File object.
+     * the supplied File object. The file will be memory mapped and parsed
+     * in place, unless it is compressed. The compressed file is decompressed
+     * on separate thread while parsed.
      *
      * @param file 		the source file.
      * @throws IOException 	if an error occurs
@@ -44,10 +73,57 @@ public class CSVLoader implements Closeable{
 
         // set the source only if the file exists
         if (file.exists()) {
-            setSource(new FileInputStream(file));
+            if (CompressedIO.isCompressed(file)) {
+                m_sourceReader = new BufferedReader(new InputStreamReader(CompressedIO.openInput(file),
+                        StandardCharsets.UTF_8));
+            } else {
+                m_mappedReader = new MappedCSVReader(file);
+            }
+        }
+    }
+
+    /**
+     * Sets the declared types of the data set fields. Each field will be decoded directly according to its type:
+     * INT as integer, DOUBLE as double and STRING as trimmed string. The fields beyond the declared ones are
+     * treated as strings. If types are not set, every field is tried as a number first.
+     *
+     * @param fieldTypes the types of fields in order of columns
+     */
+    public void setFieldTypes(CSVSaver.FieldType[] fieldTypes) {
+        m_fieldTypes = fieldTypes;
+    }
+
+    /**
+     * Sets the indices of columns to be decoded. The values of other columns are neither decoded nor stored:
+     * the row keeps its width, but skipped fields are left as null, so the columns indices stay the same.
+     *
+     * @param columns the indices of required columns or null to decode all columns
+     */
+    public void setRequiredColumns(int... columns) {
+        if (columns == null) {
+            m_requiredColumns = null;
+            return;
+        }
+        int max = -1;
+        for (int column : columns) {
+            max = Math.max(max, column);
+        }
+        m_requiredColumns = new boolean[max + 1];
+        for (int column : columns) {
+            m_requiredColumns[column] = true;
         }
     }
 
+    /**
+     * Sets whether large source files should be split into chunks parsed in parallel
+     * when full data set is requested. Enabled by default.
+     *
+     * @param parallel true to parse in parallel
+     */
+    public void setParallel(boolean parallel) {
+        m_parallel = parallel;
+    }
+
     /**
      * Return the full data set. If the structure hasn't yet been determined by a
      * call to getStructure then method should do so before processing the rest of
@@ -57,37 +133,315 @@ public class CSVLoader implements Closeable{
      * @exception IOException if there is no source or parsing fails
      */
     public List<List<Object>> getDataSet() throws IOException {
+        if (m_parallel && m_mappedReader != null && m_mappedReader.getRecordNumber() == 0
+                && m_sourceFile.length() >= PARALLEL_THRESHOLD) {
+            return getDataSetParallel();
+        }
+        ArrayList<List<Object>>dataSet = new ArrayList<>();
+        List<Object>current;
+        while ((current = getNextRow()) != null) {
+            dataSet.add(current);
+        }
+
+        return dataSet;
+    }
+
+    /**
+     * Read the data set incrementally---get the next row in the data set or
+     * returns null if there are no more rows to get. Only the current row is
+     * held in memory, so the data set of any size can be processed this way.
+     *
+     * @return the next row in the data set or null if there are no more rows
+     * @exception IOException if there is no source or parsing fails
+     */
+    public List<Object> getNextRow() throws IOException {
         if ((m_sourceFile == null) && (m_sourceReader == null)) {
             throw new IOException("No source has been specified");
         }
-        ArrayList<List<Object>>dataSet = new ArrayList<>();
-        ArrayList<Object>current;
-
-        CSVFormat format = CSVFormat.DEFAULT.withSkipHeaderRecord();
-        Iterable<CSVRecord> records = format.parse(m_sourceReader);
-        for (CSVRecord record : records) {
-            int count = record.size();
-            current = new ArrayList<>(count);
-            for (int i = 0; i < count; i++) {
-                // try to parse as a number
-                String val = record.get(i);
-                try {
-                    current.add(Double.valueOf(val));
-                } catch (NumberFormatException e) {
-                    // otherwise assume its an enumerated value
-                    current.add(new String(val).trim());
+        if (m_mappedReader != null) {
+            return getNextMappedRow();
+        }
+        if (m_records == null) {
+            CSVFormat format = CSVFormat.DEFAULT.withSkipHeaderRecord();
+            m_parser = format.parse(m_sourceReader);
+            m_records = m_parser.iterator();
+        }
+
+        CSVRecord record;
+        try {
+            if (!m_records.hasNext()) {
+                return null;
+            }
+            record = m_records.next();
+        } catch (IllegalStateException e) {
+            // the parser wraps IO errors while iterating
+            throw new IOException("Failed to parse data set", e.getCause());
+        }
+
+        int count = record.size();
+        ArrayList<Object>current = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            current.add(isRequired(i) ? decodeField(record.get(i), i, record.getRecordNumber()) : null);
+        }
+        return current;
+    }
+
+    private List<Object> getNextMappedRow() throws IOException {
+        return readMappedRow(m_mappedReader);
+    }
+
+    private List<Object> readMappedRow(MappedCSVReader reader) throws IOException {
+        if (!reader.nextRecord()) {
+            return null;
+        }
+        int count = reader.getFieldCount();
+        ArrayList<Object>current = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            current.add(isRequired(i) ? decodeMappedField(reader, i) : null);
+        }
+        return current;
+    }
+
+    /**
+     * Parses the source file in parallel. The file is split into byte ranges, each range is resynced to the record
+     * boundary with regard to quoted fields, ranges are parsed by Fork-Join tasks and resulting rows are joined
+     * in the original order.
+     * <p>
+     * The quoting state at the start of each range is found from the parity of quote chars in all preceding
+     * ranges, so quote chars are expected to appear only as fields encapsulators.
+     *
+     * @return the full data set
+     * @throws IOException if parsing fails
+     */
+    protected List<List<Object>> getDataSetParallel() throws IOException {
+        try (FileChannel channel = FileChannel.open(m_sourceFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ForkJoinPool pool = new ForkJoinPool();
+            ParseRangeTask[] tasks;
+            try {
+                int chunks = (int) Math.max(pool.getParallelism() * 4L, size / MAX_CHUNK_SIZE + 1);
+                long chunkSize = size / chunks + 1;
+
+                // find quotes parity and candidate records boundaries of each chunk
+                ScanChunkAction[] scans = new ScanChunkAction[chunks];
+                for (int i = 0; i < chunks; i++) {
+                    long start = Math.min(size, i * chunkSize);
+                    scans[i] = new ScanChunkAction(channel, start, Math.min(size, start + chunkSize));
                 }
+                pool.invoke(new InvokeAllAction(scans));
+
+                // resolve records boundaries
+                long[] bounds = new long[chunks + 1];
+                int count = 0;
+                bounds[count++] = 0;
+                boolean inQuotes = false;
+                for (int i = 1; i < chunks; i++) {
+                    inQuotes ^= scans[i - 1].oddQuotes;
+                    long bound = inQuotes ? scans[i].oddBoundary : scans[i].evenBoundary;
+                    if (bound > bounds[count - 1]) {
+                        bounds[count++] = bound;
+                    }
+                }
+                if (size > bounds[count - 1]) {
+                    bounds[count++] = size;
+                }
+
+                // parse ranges
+                tasks = new ParseRangeTask[count - 1];
+                for (int i = 0; i < tasks.length; i++) {
+                    tasks[i] = new ParseRangeTask(channel, bounds[i], bounds[i + 1]);
+                }
+                pool.invoke(new InvokeAllAction(tasks));
+            } finally {
+                pool.shutdown();
             }
-            dataSet.add(current);
+
+            // join in order
+            int rows = 0;
+            for (ParseRangeTask task : tasks) {
+                rows += task.getRawResult().size();
+            }
+            ArrayList<List<Object>> dataSet = new ArrayList<>(rows);
+            for (ParseRangeTask task : tasks) {
+                dataSet.addAll(task.getRawResult());
+            }
+            return dataSet;
+        } catch (ParseException e) {
+            throw e.getCause();
         }
+    }
 
-        return dataSet;
+    private boolean isRequired(int index) {
+        return m_requiredColumns == null || (index < m_requiredColumns.length && m_requiredColumns[index]);
+    }
+
+    /**
+     * Decodes the value of field in current record of mapped reader according to the declared field type. Numbers
+     * are parsed directly from the mapped bytes.
+     *
+     * @param reader the mapped reader positioned at record
+     * @param index the index of field in row
+     * @return the decoded value
+     * @throws IOException if value can not be decoded as declared type
+     */
+    protected Object decodeMappedField(MappedCSVReader reader, int index) throws IOException {
+        if (m_fieldTypes == null) {
+            return decodeField(reader.getString(index), index, reader.getRecordNumber());
+        }
+
+        CSVSaver.FieldType type = index < m_fieldTypes.length ? m_fieldTypes[index] : CSVSaver.FieldType.STRING;
+        try {
+            switch (type) {
+                case INT:
+                    return reader.getInt(index);
+
+                case DOUBLE:
+                    return reader.getDouble(index);
+
+                default:
+                    return reader.getTrimmedString(index);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Failed to decode field %d of row %d as %s: [%s]", index,
+                    reader.getRecordNumber(), type, reader.getString(index)));
+        }
+    }
+
+    /**
+     * Decodes the value of field according to the declared field type.
+     *
+     * @param val the raw field value
+     * @param index the index of field in row
+     * @param rowNumber the number of row in data set (for error reporting)
+     * @return the decoded value
+     * @throws IOException if value can not be decoded as declared type
+     */
+    protected Object decodeField(String val, int index, long rowNumber) throws IOException {
+        if (m_fieldTypes == null) {
+            // try to parse as a number
+            try {
+                return Double.valueOf(val);
+            } catch (NumberFormatException e) {
+                // otherwise assume its an enumerated value
+                return val.trim();
+            }
+        }
+
+        CSVSaver.FieldType type = index < m_fieldTypes.length ? m_fieldTypes[index] : CSVSaver.FieldType.STRING;
+        try {
+            switch (type) {
+                case INT:
+                    return Integer.valueOf(val.trim());
+
+                case DOUBLE:
+                    return Double.valueOf(val);
+
+                default:
+                    return val.trim();
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Failed to decode field %d of row %d as %s: [%s]", index, rowNumber, type, val));
+        }
     }
 
     @Override
     public void close() throws IOException {
+        if (m_mappedReader != null) {
+            m_mappedReader.close();
+        }
+        if (m_parser != null) {
+            m_parser.close();
+        }
         if (m_sourceReader != null) {
             m_sourceReader.close();
         }
     }
+
+    // The unchecked wrapper to pass IO errors out of Fork-Join tasks
+    private static class ParseException extends RuntimeException {
+        ParseException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    // The action to scan chunk of file for the quotes parity and the first records boundaries after even and odd
+    // number of quotes seen in this chunk
+    private static class ScanChunkAction extends RecursiveAction {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        // whether chunk has odd number of quote chars
+        boolean oddQuotes;
+        // the position after the first line break preceded by even number of quotes in chunk
+        long evenBoundary = -1;
+        // the position after the first line break preceded by odd number of quotes in chunk
+        long oddBoundary = -1;
+
+        ScanChunkAction(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end <= start) {
+                return;
+            }
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new ParseException(e);
+            }
+            int length = (int) (end - start);
+            boolean odd = false;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(i);
+                if (b == '"') {
+                    odd = !odd;
+                } else if (b == '\n' || b == '\r') {
+                    if (odd && oddBoundary < 0) {
+                        oddBoundary = start + i + 1;
+                    } else if (!odd && evenBoundary < 0) {
+                        evenBoundary = start + i + 1;
+                    }
+                }
+            }
+            oddQuotes = odd;
+        }
+    }
+
+    // The task to parse records within range of file
+    private class ParseRangeTask extends RecursiveTask<List<List<Object>>> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ParseRangeTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<List<Object>> compute() {
+            ArrayList<List<Object>> rows = new ArrayList<>();
+            try (MappedCSVReader reader = new MappedCSVReader(channel, start, end, MappedCSVReader.WINDOW_SIZE)) {
+                List<Object> row;
+                while ((row = readMappedRow(reader)) != null) {
+                    rows.add(row);
+                }
+            } catch (IOException e) {
+                throw new ParseException(e);
+            }
+            return rows;
+        }
+    }
 }
@@ -2,29 +2,79 @@ package ua.nologin.mdm.converters;/**
  * Created by yaric on 8/14/15.
  */
 
+import ua.nologin.mdm.blocking.InvokeAllAction;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Iaroslav Omelianenko
  */
 public class CSVSaver implements Closeable {
 
+    /**
+     * The types of data set fields. Used both to format fields on saving and to decode fields on loading.
+     */
     public enum FieldType {
         INT,
         DOUBLE,
         STRING
     }
+    /** The size of output buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The bytes of line separator. */
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    /** The number of rows encoded by one parallel task. */
+    public static final int PARTITION_SIZE = 16 * 1024;
+
     /**
      * Holds the source of the data set.
      */
     protected File m_outputFile;
     /**
-     * The writer.
+     * The output channel if writing into file.
+     */
+    private transient WritableByteChannel m_channel;
+    /**
+     * The output stream if writing into generic stream.
      */
-    private transient PrintWriter m_writer;
+    private transient OutputStream m_stream;
+    /**
+     * The encoder of rows into output buffer.
+     */
+    private final RowEncoder m_encoder = new RowEncoder(BUFFER_SIZE, this);
+    /**
+     * Whether large data sets should be encoded in parallel.
+     */
+    protected boolean m_parallel = true;
 
-    public void write(List<List<Object>> data, FieldType[] fieldTypes) {
+    /**
+     * Sets whether large data sets should be split into partitions encoded into separate buffers in parallel and
+     * written in order.
+     *
+     * @param parallel true to encode in parallel
+     */
+    public void setParallel(boolean parallel) {
+        m_parallel = parallel;
+    }
+
+    /**
+     * Writes data set rows. The strings are enclosed in double quotes with embedded quotes doubled, the numbers
+     * are formatted the same way as by {@link Integer#toString(int)} and {@link Double#toString(double)}. The
+     * values are encoded directly into reusable output buffer as UTF-8.
+     *
+     * @param data       the data set rows
+     * @param fieldTypes the types of fields
+     * @throws IOException if write fails
+     */
+    public void write(List<List<Object>> data, FieldType[] fieldTypes) throws IOException {
         if (data == null) {
             throw new IllegalArgumentException("Data is NULL");
         }
@@ -35,38 +85,242 @@ public class CSVSaver implements Closeable {
             throw new IllegalArgumentException("Data set row should have the same number of fields as provided fields types array");
         }
 
-        Object value;
-        Double dvalue;
-        int rowSize;
-        for (List<Object> row : data) {
-            rowSize = row.size();
-            for (int i = 0; i < rowSize; i++) {
-                value = row.get(i);
-                switch (fieldTypes[i]) {
-                    case STRING:
-                        m_writer.printf("\"%s\"", (String)value);
-                        break;
-
-                    case INT:
-                        dvalue = (Double)value;
-                        m_writer.print(dvalue.intValue());
-                        break;
-
-                    default:
-                        m_writer.print(value.toString());
-                        break;
+        if (m_parallel && data.size() > PARTITION_SIZE && data instanceof RandomAccess) {
+            writeParallel(data, fieldTypes);
+        } else {
+            m_encoder.encode(data, fieldTypes);
+        }
+    }
+
+    /**
+     * Encodes partitions of data set in parallel. The partitions are processed by waves of limited size, so only
+     * bytes of one wave are kept in memory at once, and each wave is written in order after it encoded.
+     *
+     * @param data       the data set rows
+     * @param fieldTypes the types of fields
+     * @throws IOException if write fails
+     */
+    protected void writeParallel(List<List<Object>> data, FieldType[] fieldTypes) throws IOException {
+        m_encoder.flush();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            int partitions = (data.size() + PARTITION_SIZE - 1) / PARTITION_SIZE;
+            int wave = pool.getParallelism() * 4;
+            for (int first = 0; first < partitions; first += wave) {
+                EncodePartitionAction[] tasks = new EncodePartitionAction[Math.min(wave, partitions - first)];
+                for (int i = 0; i < tasks.length; i++) {
+                    int from = (first + i) * PARTITION_SIZE;
+                    int to = Math.min(data.size(), from + PARTITION_SIZE);
+                    tasks[i] = new EncodePartitionAction(data.subList(from, to), fieldTypes);
+                }
+                pool.invoke(new InvokeAllAction(tasks));
+
+                // concatenate in order
+                for (EncodePartitionAction task : tasks) {
+                    writeBytes(task.encoder.m_bytes, task.encoder.m_buffer.position());
                 }
-                if (i < rowSize - 1) {
-                    m_writer.print(",");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void writeBytes(byte[] bytes, int length) throws IOException {
+        if (m_channel != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            while (buffer.hasRemaining()) {
+                m_channel.write(buffer);
+            }
+        } else if (m_stream != null) {
+            m_stream.write(bytes, 0, length);
+        } else {
+            throw new IOException("No destination is set to write data");
+        }
+    }
+
+    /**
+     * The encoder of rows into byte buffer. When buffer is full it is either flushed into the saver output or
+     * grown if encoder has no saver.
+     */
+    private static class RowEncoder {
+        // The saver to flush full buffer into or null to grow buffer
+        private final CSVSaver saver;
+        // The output buffer
+        private byte[] m_bytes;
+        private ByteBuffer m_buffer;
+        // The reusable builder for doubles formatting
+        private final StringBuilder m_number = new StringBuilder(32);
+
+        RowEncoder(int size, CSVSaver saver) {
+            this.saver = saver;
+            m_bytes = new byte[size];
+            m_buffer = ByteBuffer.wrap(m_bytes);
+        }
+
+        void encode(List<List<Object>> data, FieldType[] fieldTypes) throws IOException {
+            Object value;
+            int rowSize;
+            for (List<Object> row : data) {
+                rowSize = row.size();
+                for (int i = 0; i < rowSize; i++) {
+                    value = row.get(i);
+                    switch (fieldTypes[i]) {
+                        case STRING:
+                            putString(String.valueOf(value));
+                            break;
+
+                        case INT:
+                            putInt(((Number) value).intValue());
+                            break;
+
+                        default:
+                            if (value instanceof Double) {
+                                putDouble((Double) value);
+                            } else {
+                                putString(value.toString(), false);
+                            }
+                            break;
+                    }
+                    if (i < rowSize - 1) {
+                        put((byte) ',');
+                    } else {
+                        ensure(LINE_SEPARATOR.length);
+                        m_buffer.put(LINE_SEPARATOR);
+                    }
+                }
+            }
+        }
+
+        private void put(byte b) throws IOException {
+            if (!m_buffer.hasRemaining()) {
+                ensure(1);
+            }
+            m_buffer.put(b);
+        }
+
+        private void ensure(int size) throws IOException {
+            if (m_buffer.remaining() >= size) {
+                return;
+            }
+            if (saver != null) {
+                flush();
+            } else {
+                int position = m_buffer.position();
+                m_bytes = Arrays.copyOf(m_bytes, Math.max(m_bytes.length * 2, position + size));
+                m_buffer = ByteBuffer.wrap(m_bytes);
+                m_buffer.position(position);
+            }
+        }
+
+        private void putInt(int value) throws IOException {
+            ensure(11);
+            if (value == Integer.MIN_VALUE) {
+                // can not be negated
+                putString("-2147483648", false);
+                return;
+            }
+            if (value < 0) {
+                m_buffer.put((byte) '-');
+                value = -value;
+            }
+            int end = m_buffer.position() + digits(value);
+            for (int pos = end - 1; ; pos--) {
+                m_bytes[pos] = (byte) ('0' + value % 10);
+                value /= 10;
+                if (value == 0) {
+                    break;
+                }
+            }
+            m_buffer.position(end);
+        }
+
+        private static int digits(int value) {
+            int digits = 1;
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+            return digits;
+        }
+
+        private void putDouble(double value) throws IOException {
+            m_number.setLength(0);
+            m_number.append(value);
+            int length = m_number.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                m_buffer.put((byte) m_number.charAt(i));
+            }
+        }
+
+        private void putString(String value) throws IOException {
+            put((byte) '"');
+            putString(value, true);
+            put((byte) '"');
+        }
+
+        // encodes string as UTF-8 doubling quotes if requested
+        private void putString(String value, boolean escape) throws IOException {
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                ensure(4);
+                if (c < 0x80) {
+                    if (c == '"' && escape) {
+                        m_buffer.put((byte) '"');
+                    }
+                    m_buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    m_buffer.put((byte) (0xC0 | (c >> 6)));
+                    m_buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    m_buffer.put((byte) (0xF0 | (cp >> 18)));
+                    m_buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    m_buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    m_buffer.put((byte) (0x80 | (cp & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    // malformed surrogate pair
+                    m_buffer.put((byte) '?');
                 } else {
-                    m_writer.println();
+                    m_buffer.put((byte) (0xE0 | (c >> 12)));
+                    m_buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    m_buffer.put((byte) (0x80 | (c & 0x3F)));
                 }
             }
         }
+
+        void flush() throws IOException {
+            saver.writeBytes(m_bytes, m_buffer.position());
+            m_buffer.clear();
+        }
+    }
+
+    // The action to encode partition of data set into its own buffer
+    private static class EncodePartitionAction extends RecursiveAction {
+        private final List<List<Object>> rows;
+        private final FieldType[] fieldTypes;
+        private final RowEncoder encoder = new RowEncoder(BUFFER_SIZE, null);
+
+        EncodePartitionAction(List<List<Object>> rows, FieldType[] fieldTypes) {
+            this.rows = rows;
+            this.fieldTypes = fieldTypes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                encoder.encode(rows, fieldTypes);
+            } catch (IOException e) {
+                // never thrown when encoding into growing buffer
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     /**
-     * Sets the destination file.
+     * Sets the destination file. The output is compressed if file has <code>.gz</code>, <code>.zz</code> or
+     * <code>.deflate</code> extension.
      *
      * @param outputFile the destination file.
      * @throws java.io.IOException throws an IOException if file cannot be set
@@ -82,7 +336,11 @@ public class CSVSaver implements Closeable {
      * @throws IOException throws an IOException if destination cannot be set
      */
     public void setDestination(OutputStream output) throws IOException {
-        m_writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
+        if (output instanceof FileOutputStream) {
+            m_channel = ((FileOutputStream) output).getChannel();
+        } else {
+            m_stream = output;
+        }
     }
 
     /**
@@ -115,7 +373,7 @@ public class CSVSaver implements Closeable {
                 }
                 if (success) {
                     m_outputFile = file;
-                    setDestination(new FileOutputStream(m_outputFile));
+                    setDestination(CompressedIO.openOutput(m_outputFile));
                 }
             } catch (Exception ex) {
                 throw new IOException("Cannot create a new output file (Reason: " + ex.toString() + ").");
@@ -130,8 +388,14 @@ public class CSVSaver implements Closeable {
 
     @Override
     public void close() throws IOException {
-        if (m_writer != null) {
-            m_writer.close();
+        try {
+            m_encoder.flush();
+        } finally {
+            if (m_channel != null) {
+                m_channel.close();
+            } else if (m_stream != null) {
+                m_stream.close();
+            }
         }
     }
 }
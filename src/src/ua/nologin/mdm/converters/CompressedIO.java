@@ -0,0 +1,376 @@
+package ua.nologin.mdm.converters;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The utilities to read and write compressed files transparently. The compressed inputs are detected by magic
+ * numbers of gzip and zlib (deflate) formats and decompressed on separate thread ahead of consumer, so
+ * decompression overlaps with parsing. The outputs are compressed according to file extension: <code>.gz</code>
+ * for gzip and <code>.zz</code> or <code>.deflate</code> for zlib.
+ */
+public final class CompressedIO {
+    /** The size of chunks of decompressed data passed between threads. */
+    public static final int CHUNK_SIZE = 256 * 1024;
+    /** The number of decompressed chunks buffered ahead of consumer. */
+    public static final int CHUNKS_AHEAD = 4;
+    /** The size of compression buffers. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The compression formats.
+     */
+    public enum Format {
+        NONE,
+        GZIP,
+        DEFLATE
+    }
+
+    private CompressedIO() {
+    }
+
+    /**
+     * Detects compression format of file by its magic number.
+     *
+     * @param file the file to check
+     * @return the detected format or NONE if file is not compressed
+     * @throws IOException if file can not be read
+     */
+    public static Format detectFormat(File file) throws IOException {
+        if (!file.isFile()) {
+            return Format.NONE;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] magic = new byte[2];
+            int read = 0;
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0) {
+                    return Format.NONE;
+                }
+                read += n;
+            }
+            return detectFormat(magic);
+        }
+    }
+
+    private static Format detectFormat(byte[] magic) {
+        int b0 = magic[0] & 0xff, b1 = magic[1] & 0xff;
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return Format.GZIP;
+        }
+        // zlib header with 32K window, only the headers written by common compression levels are accepted to
+        // avoid confusing them with text
+        if (b0 == 0x78 && (b1 == 0x01 || b1 == 0x5e || b1 == 0x9c || b1 == 0xda)) {
+            return Format.DEFLATE;
+        }
+        return Format.NONE;
+    }
+
+    /**
+     * @param file the file to check
+     * @return true if file is compressed in one of supported formats
+     * @throws IOException if file can not be read
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        return detectFormat(file) != Format.NONE;
+    }
+
+    /**
+     * Returns compression format to be used for output file according to its extension.
+     *
+     * @param file the output file
+     * @return the compression format or NONE
+     */
+    public static Format outputFormat(File file) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".gz")) {
+            return Format.GZIP;
+        } else if (name.endsWith(".zz") || name.endsWith(".deflate")) {
+            return Format.DEFLATE;
+        }
+        return Format.NONE;
+    }
+
+    /**
+     * Returns file name without compression extension.
+     *
+     * @param file the file
+     * @return the file name without compression extension if any
+     */
+    public static String stripExtension(File file) {
+        String name = file.getName();
+        if (outputFormat(file) == Format.NONE) {
+            return name;
+        }
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * Opens file for reading, decompressing its content if it is compressed. The decompression runs on separate
+     * thread.
+     *
+     * @param file the file to read
+     * @return the stream of file content
+     * @throws IOException if file can not be opened
+     */
+    public static InputStream openInput(File file) throws IOException {
+        return openInput(file, true);
+    }
+
+    /**
+     * Opens file for reading as channel, decompressing its content if it is compressed. The plain files are opened
+     * as {@link FileChannel} which supports positional access and memory mapping.
+     *
+     * @param file the file to read
+     * @return the channel of file content
+     * @throws IOException if file can not be opened
+     */
+    public static ReadableByteChannel openChannel(File file) throws IOException {
+        if (isCompressed(file)) {
+            return Channels.newChannel(openInput(file, true));
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Checks whether content of file, decompressed if necessary, starts with specified magic number.
+     *
+     * @param file  the file to check
+     * @param magic the expected magic number
+     * @return true if content starts with magic number
+     * @throws IOException if file can not be read
+     */
+    public static boolean hasMagic(File file, int magic) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(openInput(file, false))) {
+            return in.readInt() == magic;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static InputStream openInput(File file, boolean pipelined) throws IOException {
+        Format format = detectFormat(file);
+        InputStream in = new FileInputStream(file);
+        InputStream decompressed;
+        try {
+            switch (format) {
+                case GZIP:
+                    decompressed = new GZIPInputStream(in, BUFFER_SIZE);
+                    break;
+
+                case DEFLATE:
+                    decompressed = new InflaterInputStream(in);
+                    break;
+
+                default:
+                    return new BufferedInputStream(in, BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return pipelined ? new PipelinedInputStream(decompressed, file.getName()) : decompressed;
+    }
+
+    /**
+     * Opens file for writing, compressing content if file extension denotes compression. The existing file will
+     * be overwritten.
+     *
+     * @param file the file to write
+     * @return the output stream
+     * @throws IOException if file can not be created
+     */
+    public static OutputStream openOutput(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        switch (outputFormat(file)) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+
+            case DEFLATE:
+                return new DeflaterOutputStream(out, new Deflater(), BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Opens file for writing as channel, compressing content if file extension denotes compression. The plain
+     * files are opened as {@link FileChannel} which supports positional writes. The existing file will be
+     * overwritten.
+     *
+     * @param file the file to write
+     * @return the output channel
+     * @throws IOException if file can not be created
+     */
+    public static WritableByteChannel openOutputChannel(File file) throws IOException {
+        if (outputFormat(file) != Format.NONE) {
+            return Channels.newChannel(openOutput(file));
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * The input stream which reads source stream on background thread into queue of chunks.
+     */
+    private static class PipelinedInputStream extends InputStream {
+        // The marker of the end of source
+        private static final byte[] EOF = new byte[0];
+
+        // The source stream
+        private final InputStream source;
+        // The queue of read chunks
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+        // The reader thread
+        private final Thread reader;
+        // The error of reader thread
+        private volatile IOException error;
+        // The current chunk
+        private byte[] chunk;
+        // The position in current chunk
+        private int pos;
+        // Whether stream is closed
+        private volatile boolean closed;
+
+        PipelinedInputStream(InputStream source, String name) {
+            this.source = source;
+            this.reader = new Thread(this::readSource, "decompress-" + name);
+            this.reader.setDaemon(true);
+            this.reader.start();
+        }
+
+        private void readSource() {
+            try {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int filled = 0;
+                int n;
+                while (!closed && (n = source.read(buffer, filled, buffer.length - filled)) >= 0) {
+                    filled += n;
+                    if (filled == buffer.length) {
+                        chunks.put(buffer);
+                        buffer = new byte[CHUNK_SIZE];
+                        filled = 0;
+                    }
+                }
+                if (filled > 0) {
+                    chunks.put(Arrays.copyOf(buffer, filled));
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // closed by consumer
+                return;
+            }
+            try {
+                chunks.put(EOF);
+            } catch (InterruptedException e) {
+                // closed by consumer
+            }
+        }
+
+        // returns false at the end of stream
+        private boolean nextChunk() throws IOException {
+            if (chunk == EOF) {
+                return false;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for decompressed data");
+            }
+            pos = 0;
+            if (chunk == EOF) {
+                if (error != null) {
+                    throw new IOException("Failed to decompress input", error);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (chunk == null || pos == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunk == null || pos == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null || chunk == EOF ? 0 : chunk.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            source.close();
+        }
+    }
+}
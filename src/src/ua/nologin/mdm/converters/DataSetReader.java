@@ -0,0 +1,257 @@
+package ua.nologin.mdm.converters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The reader of data set in binary format written by {@link DataSetWriter}. The file is memory mapped by windows
+ * of limited size and rows are decoded directly from mapped bytes. The compressed file is decompressed on
+ * separate thread and read through buffer instead. The fields which are not required are skipped without decoding.
+ */
+public class DataSetReader implements Closeable {
+    /** The default size of mapped window. */
+    public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /** The size of read buffer used for compressed file. */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** The channel to read data from. */
+    private final ReadableByteChannel m_channel;
+    /** The channel to map data from or null if file is compressed. */
+    private final FileChannel m_fileChannel;
+    /** The size of file or -1 if file is compressed. */
+    private final long m_size;
+    /** The types of fields. */
+    private final CSVSaver.FieldType[] m_fieldTypes;
+    /** The number of rows declared in header. */
+    private final long m_count;
+    /** The flags of fields to be decoded. */
+    private boolean[] m_requiredColumns;
+
+    /** The currently mapped window or read buffer. */
+    private ByteBuffer m_window;
+    /** The position of current window in file. */
+    private long m_windowStart;
+    /** The number of rows read so far. */
+    private long m_rowNumber;
+    /** The reusable buffer for strings decoding. */
+    private byte[] m_bytes = new byte[256];
+
+    /**
+     * Opens data set file for reading.
+     *
+     * @param file the data set file
+     * @throws IOException if file can not be opened or has wrong format
+     */
+    public DataSetReader(File file) throws IOException {
+        m_channel = CompressedIO.openChannel(file);
+        try {
+            if (m_channel instanceof FileChannel) {
+                m_fileChannel = (FileChannel) m_channel;
+                m_size = m_fileChannel.size();
+            } else {
+                m_fileChannel = null;
+                m_size = -1;
+            }
+            if (!fill(12) || m_window.getInt() != DataSetWriter.MAGIC) {
+                throw new IOException("Not a data set file: " + file);
+            }
+            int version = m_window.getInt();
+            if (version != DataSetWriter.VERSION) {
+                throw new IOException("Unsupported data set file version: " + version);
+            }
+            int fields = m_window.getInt();
+            if (fields < 0 || fields > Short.MAX_VALUE || !fill(fields + 8)) {
+                throw new IOException("Corrupted data set file header: " + file);
+            }
+            CSVSaver.FieldType[] values = CSVSaver.FieldType.values();
+            m_fieldTypes = new CSVSaver.FieldType[fields];
+            for (int i = 0; i < fields; i++) {
+                int ordinal = m_window.get();
+                if (ordinal < 0 || ordinal >= values.length) {
+                    throw new IOException("Unknown field type: " + ordinal);
+                }
+                m_fieldTypes[i] = values[ordinal];
+            }
+            m_count = m_window.getLong();
+        } catch (IOException e) {
+            m_channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether specified file is data set file by its magic number.
+     *
+     * @param file the file to check
+     * @return true if file starts with data set magic number
+     * @throws IOException if file can not be read
+     */
+    public static boolean isDataSetFile(File file) throws IOException {
+        return CompressedIO.hasMagic(file, DataSetWriter.MAGIC);
+    }
+
+    /**
+     * @return the types of fields
+     */
+    public CSVSaver.FieldType[] getFieldTypes() {
+        return m_fieldTypes.clone();
+    }
+
+    /**
+     * @return the number of rows declared in header or -1 if unknown
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Sets the columns to be decoded. The values of other columns are returned as null.
+     *
+     * @param columns the indices of columns or null to decode all columns
+     */
+    public void setRequiredColumns(int... columns) {
+        if (columns == null) {
+            m_requiredColumns = null;
+            return;
+        }
+        m_requiredColumns = new boolean[m_fieldTypes.length];
+        for (int column : columns) {
+            m_requiredColumns[column] = true;
+        }
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @return the row or null if there are no more rows
+     * @throws IOException if failed to read data or file is corrupted
+     */
+    public List<Object> getNextRow() throws IOException {
+        if (!fill(4)) {
+            return null;
+        }
+        int length = m_window.getInt(m_window.position());
+        if (length < 0 || length > Integer.MAX_VALUE - 4) {
+            throw new IOException(String.format("Corrupted length of row %d", m_rowNumber + 1));
+        }
+        fill(length + 4);
+        m_window.position(m_window.position() + 4);
+        int end = m_window.position() + length;
+
+        List<Object> row = new ArrayList<>(m_fieldTypes.length);
+        for (int i = 0; i < m_fieldTypes.length; i++) {
+            boolean required = m_requiredColumns == null || m_requiredColumns[i];
+            switch (m_fieldTypes[i]) {
+                case INT:
+                    int intValue = m_window.getInt();
+                    row.add(required ? Integer.valueOf(intValue) : null);
+                    break;
+
+                case DOUBLE:
+                    double doubleValue = m_window.getDouble();
+                    row.add(required ? Double.valueOf(doubleValue) : null);
+                    break;
+
+                default:
+                    int size = m_window.getInt();
+                    if (size < 0) {
+                        row.add(null);
+                    } else if (required) {
+                        row.add(decodeString(size));
+                    } else {
+                        m_window.position(m_window.position() + size);
+                        row.add(null);
+                    }
+                    break;
+            }
+        }
+        if (m_window.position() != end) {
+            throw new IOException(String.format("Corrupted row %d", m_rowNumber + 1));
+        }
+        m_rowNumber++;
+        return row;
+    }
+
+    /**
+     * Reads all remaining rows.
+     *
+     * @return the list of rows
+     * @throws IOException if failed to read data or file is corrupted
+     */
+    public List<List<Object>> getDataSet() throws IOException {
+        List<List<Object>> dataSet = new ArrayList<>(m_count > 0 && m_count < Integer.MAX_VALUE ? (int) m_count : 16);
+        List<Object> row;
+        while ((row = getNextRow()) != null) {
+            dataSet.add(row);
+        }
+        return dataSet;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_window = null;
+        m_channel.close();
+    }
+
+    private String decodeString(int size) {
+        if (m_bytes.length < size) {
+            m_bytes = Arrays.copyOf(m_bytes, Math.max(size, m_bytes.length * 2));
+        }
+        m_window.get(m_bytes, 0, size);
+        return new String(m_bytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    // makes at least required bytes available in window, returns false if there are no more bytes at all
+    private boolean fill(int required) throws IOException {
+        if (m_window != null && m_window.remaining() >= required) {
+            return true;
+        }
+        if (m_fileChannel != null) {
+            // map the next window starting at current position
+            long position = m_window == null ? 0 : m_windowStart + m_window.position();
+            if (m_size - position < required) {
+                if (position < m_size) {
+                    throw new IOException(String.format("EOF reached before row %d finished", m_rowNumber + 1));
+                }
+                return false;
+            }
+            long size = Math.min(Math.max((long) WINDOW_SIZE, required), m_size - position);
+            m_window = m_fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            m_windowStart = position;
+            return true;
+        }
+
+        // read more data into buffer
+        if (m_window == null) {
+            m_window = ByteBuffer.allocate(Math.max(BUFFER_SIZE, required));
+        } else if (m_window.capacity() < required) {
+            ByteBuffer window = ByteBuffer.allocate(required);
+            window.put(m_window);
+            m_window = window;
+        } else {
+            m_window.compact();
+        }
+        while (m_window.position() < required) {
+            if (m_channel.read(m_window) < 0) {
+                break;
+            }
+        }
+        m_window.flip();
+        if (m_window.remaining() < required) {
+            if (m_window.hasRemaining()) {
+                throw new IOException(String.format("EOF reached before row %d finished", m_rowNumber + 1));
+            }
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,179 @@
+package ua.nologin.mdm.converters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The writer of data set in binary format used for intermediate results passed between processing stages. The file
+ * starts with header:
+ * <pre>
+ * int  magic   - 'MDMD'
+ * int  version - the format version
+ * int  fields  - the number of fields per row
+ * byte[fields] - the fields types ordinals
+ * long count   - the number of rows or -1 if unknown
+ * </pre>
+ * followed by rows. Each row is prefixed with its length in bytes (not including prefix) and holds fields in order:
+ * INT as 4 bytes, DOUBLE as 8 bytes and STRING as the length of UTF-8 bytes (-1 for null) followed by bytes.
+ * All fixed size values are big-endian. The length prefixes allow readers to skip rows and fields without decoding.
+ */
+public class DataSetWriter implements Closeable {
+    /** The magic number of data set file. */
+    public static final int MAGIC = 0x4D444D44;
+    /** The current format version. */
+    public static final int VERSION = 1;
+    /** The default size of write buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The output channel. */
+    private final WritableByteChannel m_channel;
+    /** The types of fields. */
+    private final CSVSaver.FieldType[] m_fieldTypes;
+    /** The offset of rows count in header. */
+    private final int m_countOffset;
+    /** The write buffer. */
+    private ByteBuffer m_buffer;
+    /** The number of rows written. */
+    private long m_count;
+
+    /**
+     * Creates writer of data set into specified file. The existing file will be overwritten. The output is
+     * compressed if file extension denotes compression, see {@link CompressedIO}.
+     *
+     * @param file       the output file
+     * @param fieldTypes the types of fields
+     * @throws IOException if file can not be created
+     */
+    public DataSetWriter(File file, CSVSaver.FieldType[] fieldTypes) throws IOException {
+        m_channel = CompressedIO.openOutputChannel(file);
+        m_fieldTypes = fieldTypes.clone();
+        m_buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        m_buffer.putInt(MAGIC).putInt(VERSION).putInt(fieldTypes.length);
+        for (CSVSaver.FieldType type : fieldTypes) {
+            m_buffer.put((byte) type.ordinal());
+        }
+        m_countOffset = m_buffer.position();
+        m_buffer.putLong(-1);
+    }
+
+    /**
+     * Writes all rows of data set.
+     *
+     * @param data the data set
+     * @throws IOException if write fails
+     */
+    public void write(List<List<Object>> data) throws IOException {
+        for (List<Object> row : data) {
+            writeRow(row);
+        }
+    }
+
+    /**
+     * Writes row of data set.
+     *
+     * @param row the row with values of types given by fields types
+     * @throws IOException if write fails
+     */
+    public void writeRow(List<Object> row) throws IOException {
+        if (row.size() != m_fieldTypes.length) {
+            throw new IllegalArgumentException("Data set row should have the same number of fields as provided fields types array");
+        }
+        byte[][] strings = null;
+        int length = 0;
+        for (int i = 0; i < m_fieldTypes.length; i++) {
+            switch (m_fieldTypes[i]) {
+                case INT:
+                    length += 4;
+                    break;
+
+                case DOUBLE:
+                    length += 8;
+                    break;
+
+                default:
+                    Object value = row.get(i);
+                    if (strings == null) {
+                        strings = new byte[m_fieldTypes.length][];
+                    }
+                    if (value != null) {
+                        strings[i] = value.toString().getBytes(StandardCharsets.UTF_8);
+                        length += strings[i].length;
+                    }
+                    length += 4;
+                    break;
+            }
+        }
+        ensure(length + 4);
+        m_buffer.putInt(length);
+        for (int i = 0; i < m_fieldTypes.length; i++) {
+            switch (m_fieldTypes[i]) {
+                case INT:
+                    m_buffer.putInt(((Number) row.get(i)).intValue());
+                    break;
+
+                case DOUBLE:
+                    m_buffer.putDouble(((Number) row.get(i)).doubleValue());
+                    break;
+
+                default:
+                    if (strings[i] == null) {
+                        m_buffer.putInt(-1);
+                    } else {
+                        m_buffer.putInt(strings[i].length).put(strings[i]);
+                    }
+                    break;
+            }
+        }
+        m_count++;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    private void ensure(int size) throws IOException {
+        if (m_buffer.remaining() >= size) {
+            return;
+        }
+        flush();
+        if (m_buffer.capacity() < size) {
+            m_buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private void flush() throws IOException {
+        m_buffer.flip();
+        while (m_buffer.hasRemaining()) {
+            m_channel.write(m_buffer);
+        }
+        m_buffer.clear();
+    }
+
+    /**
+     * Flushes remaining rows and stores the number of rows in header.
+     *
+     * @throws IOException if write fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (m_channel instanceof FileChannel) {
+                // the count is left unknown in compressed file
+                m_buffer.putLong(m_count).flip();
+                ((FileChannel) m_channel).write(m_buffer, m_countOffset);
+            }
+        } finally {
+            m_channel.close();
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package ua.nologin.mdm.converters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The CSV reader which scans bytes of memory mapped file directly. The fields boundaries and quoting are found
+ * in place and strings are created only for the fields which are requested explicitly. The file is mapped by
+ * windows of limited size, so files of any size can be read. The text is expected to be UTF-8 encoded and follows
+ * the same rules as <code>CSVFormat.DEFAULT</code>: comma delimited fields, optionally enclosed in double quotes with
+ * quotes escaped by doubling, CRLF, LF or CR records separators and empty lines ignored.
+ */
+public class MappedCSVReader implements Closeable {
+    /** The default size of mapped window. */
+    public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    // The results of record parsing
+    private static final int RECORD = 0;
+    private static final int END = 1;
+    private static final int NEED_MORE = 2;
+
+    /** The channel to read data from. */
+    private final FileChannel m_channel;
+    /** Whether channel was opened by this reader. */
+    private final boolean m_ownsChannel;
+    /** The start position of data in file (inclusive). */
+    private final long m_rangeStart;
+    /** The end position of data in file (exclusive). */
+    private final long m_rangeEnd;
+    /** The maximal size of mapped window. */
+    private final int m_windowSize;
+
+    /** The currently mapped window. */
+    private MappedByteBuffer m_window;
+    /** The position of current window in file. */
+    private long m_windowStart;
+    /** The number of bytes in current window. */
+    private int m_windowLimit;
+    /** The position of the next record in current window. */
+    private int m_pos;
+
+    /** The fields boundaries of the current record. */
+    private int[] m_fieldStarts = new int[8];
+    private int[] m_fieldEnds = new int[8];
+    /** Whether field has escaped quotes inside. */
+    private boolean[] m_fieldEscaped = new boolean[8];
+    /** The number of fields in the current record. */
+    private int m_fieldCount;
+    /** The number of records read so far. */
+    private long m_recordNumber;
+
+    /** The reusable buffer for strings decoding. */
+    private byte[] m_bytes = new byte[256];
+
+    /**
+     * Creates reader for the whole specified file.
+     *
+     * @param file the file to read
+     * @throws IOException if file can not be opened
+     */
+    public MappedCSVReader(File file) throws IOException {
+        m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        m_ownsChannel = true;
+        m_rangeStart = 0;
+        m_rangeEnd = m_channel.size();
+        m_windowSize = WINDOW_SIZE;
+        m_windowStart = m_rangeStart;
+    }
+
+    /**
+     * Creates reader for the range of records in specified channel. The range boundaries should be at the records
+     * boundaries. The channel is not closed by this reader.
+     *
+     * @param channel the channel to read
+     * @param start the start position of range (inclusive)
+     * @param end the end position of range (exclusive)
+     * @param windowSize the maximal size of mapped window
+     */
+    public MappedCSVReader(FileChannel channel, long start, long end, int windowSize) {
+        m_channel = channel;
+        m_ownsChannel = false;
+        m_rangeStart = start;
+        m_rangeEnd = end;
+        m_windowSize = windowSize;
+        m_windowStart = m_rangeStart;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return true if record was read or false if there are no more records
+     * @throws IOException if failed to read data or CSV is malformed
+     */
+    public boolean nextRecord() throws IOException {
+        if (m_window == null) {
+            if (m_rangeEnd <= m_rangeStart) {
+                return false;
+            }
+            remap(m_rangeStart);
+        }
+        while (true) {
+            int res = parseRecord();
+            if (res == RECORD) {
+                m_recordNumber++;
+                return true;
+            } else if (res == END) {
+                return false;
+            }
+            // the record crosses window boundary
+            if (m_pos == 0 && m_windowLimit == m_windowSize) {
+                throw new IOException(String.format("The record %d is larger than mapped window", m_recordNumber + 1));
+            }
+            remap(m_windowStart + m_pos);
+        }
+    }
+
+    /**
+     * @return the number of fields in the current record
+     */
+    public int getFieldCount() {
+        return m_fieldCount;
+    }
+
+    /**
+     * @return the number of current record (starting from 1)
+     */
+    public long getRecordNumber() {
+        return m_recordNumber;
+    }
+
+    /**
+     * Returns the value of field in the current record as string.
+     *
+     * @param index the index of field
+     * @return the field value
+     */
+    public String getString(int index) {
+        return decodeString(m_fieldStarts[index], m_fieldEnds[index], m_fieldEscaped[index]);
+    }
+
+    /**
+     * Returns the value of field in the current record as string with leading and trailing whitespace removed.
+     *
+     * @param index the index of field
+     * @return the trimmed field value
+     */
+    public String getTrimmedString(int index) {
+        int start = m_fieldStarts[index];
+        int end = m_fieldEnds[index];
+        while (start < end && (m_window.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (m_window.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        return decodeString(start, end, m_fieldEscaped[index]);
+    }
+
+    /**
+     * Parses the value of field in the current record as integer directly from the underlying bytes.
+     *
+     * @param index the index of field
+     * @return the field value
+     * @throws NumberFormatException if field is not an integer number
+     */
+    public int getInt(int index) {
+        int start = m_fieldStarts[index];
+        int end = m_fieldEnds[index];
+        while (start < end && (m_window.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (m_window.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            throw new NumberFormatException("Empty value");
+        }
+        boolean negative = false;
+        byte b = m_window.get(start);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            if (++start == end) {
+                throw new NumberFormatException("Sign without digits");
+            }
+        }
+        // accumulate negatively to cover Integer.MIN_VALUE
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int multmin = limit / 10;
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = m_window.get(i) - '0';
+            if (digit < 0 || digit > 9 || result < multmin) {
+                throw new NumberFormatException("Not an integer: " + getString(index));
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Integer overflow: " + getString(index));
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses the value of field in the current record as double.
+     *
+     * @param index the index of field
+     * @return the field value
+     * @throws NumberFormatException if field is not a number
+     */
+    public double getDouble(int index) {
+        return Double.parseDouble(getTrimmedString(index));
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_window = null;
+        if (m_ownsChannel) {
+            m_channel.close();
+        }
+    }
+
+    private String decodeString(int start, int end, boolean escaped) {
+        int length = end - start;
+        if (length == 0) {
+            return "";
+        }
+        if (m_bytes.length < length) {
+            m_bytes = new byte[Math.max(length, m_bytes.length * 2)];
+        }
+        m_window.position(start);
+        m_window.get(m_bytes, 0, length);
+        if (escaped) {
+            // collapse doubled quotes
+            int j = 0;
+            for (int i = 0; i < length; i++, j++) {
+                m_bytes[j] = m_bytes[i];
+                if (m_bytes[i] == '"') {
+                    i++;
+                }
+            }
+            length = j;
+        }
+        return new String(m_bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void remap(long position) throws IOException {
+        long size = Math.min((long) m_windowSize, m_rangeEnd - position);
+        m_window = m_channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        m_windowStart = position;
+        m_windowLimit = (int) size;
+        m_pos = 0;
+    }
+
+    private int parseRecord() throws IOException {
+        boolean atEnd = m_windowStart + m_windowLimit >= m_rangeEnd;
+        int limit = m_windowLimit;
+        int i = m_pos;
+        byte b;
+
+        // skip empty lines
+        while (i < limit && ((b = m_window.get(i)) == '\n' || b == '\r')) {
+            i++;
+        }
+        m_pos = i;
+        if (i == limit) {
+            return atEnd ? END : NEED_MORE;
+        }
+
+        m_fieldCount = 0;
+        while (true) {
+            int start, end;
+            boolean escaped = false;
+            if (i == limit) {
+                if (!atEnd) {
+                    return NEED_MORE;
+                }
+                // the empty last field after delimiter
+                addField(i, i, false);
+                m_pos = i;
+                return RECORD;
+            }
+            if (m_window.get(i) == '"') {
+                // encapsulated field
+                start = ++i;
+                while (true) {
+                    if (i == limit) {
+                        if (atEnd) {
+                            throw new IOException(String.format("EOF reached before encapsulated field of record %d finished",
+                                    m_recordNumber + 1));
+                        }
+                        return NEED_MORE;
+                    }
+                    if (m_window.get(i) == '"') {
+                        if (i + 1 == limit && !atEnd) {
+                            return NEED_MORE;
+                        }
+                        if (i + 1 < limit && m_window.get(i + 1) == '"') {
+                            escaped = true;
+                            i += 2;
+                            continue;
+                        }
+                        end = i++;
+                        break;
+                    }
+                    i++;
+                }
+                // only whitespace allowed between closing quote and delimiter
+                while (i < limit && (b = m_window.get(i)) != ',' && b != '\n' && b != '\r') {
+                    if (!Character.isWhitespace(b)) {
+                        throw new IOException(String.format("Invalid char between encapsulated field and delimiter in record %d",
+                                m_recordNumber + 1));
+                    }
+                    i++;
+                }
+            } else {
+                start = i;
+                while (i < limit && (b = m_window.get(i)) != ',' && b != '\n' && b != '\r') {
+                    i++;
+                }
+                end = i;
+            }
+            addField(start, end, escaped);
+
+            if (i == limit) {
+                if (!atEnd) {
+                    return NEED_MORE;
+                }
+                m_pos = i;
+                return RECORD;
+            }
+            b = m_window.get(i++);
+            if (b == ',') {
+                continue;
+            }
+            if (b == '\r') {
+                if (i == limit && !atEnd) {
+                    return NEED_MORE;
+                }
+                if (i < limit && m_window.get(i) == '\n') {
+                    i++;
+                }
+            }
+            m_pos = i;
+            return RECORD;
+        }
+    }
+
+    private void addField(int start, int end, boolean escaped) {
+        if (m_fieldCount == m_fieldStarts.length) {
+            int size = m_fieldCount * 2;
+            m_fieldStarts = Arrays.copyOf(m_fieldStarts, size);
+            m_fieldEnds = Arrays.copyOf(m_fieldEnds, size);
+            m_fieldEscaped = Arrays.copyOf(m_fieldEscaped, size);
+        }
+        m_fieldStarts[m_fieldCount] = start;
+        m_fieldEnds[m_fieldCount] = end;
+        m_fieldEscaped[m_fieldCount] = escaped;
+        m_fieldCount++;
+    }
+}
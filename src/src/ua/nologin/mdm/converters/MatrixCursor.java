@@ -0,0 +1,33 @@
+package ua.nologin.mdm.converters;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The cursor to iterate over similarity matrix entries one by one.
+ */
+public interface MatrixCursor extends Closeable {
+
+    /**
+     * Moves to the next entry.
+     *
+     * @return true if entry was read or false if there are no more entries
+     * @throws IOException if read fails
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the first record ID of current entry
+     */
+    int getLeft();
+
+    /**
+     * @return the second record ID of current entry
+     */
+    int getRight();
+
+    /**
+     * @return the similarity score of current entry
+     */
+    double getScore();
+}
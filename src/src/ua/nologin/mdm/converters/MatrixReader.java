@@ -0,0 +1,194 @@
+package ua.nologin.mdm.converters;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The sequential reader of similarity matrix written by {@link MatrixWriter}.
+ */
+public class MatrixReader implements MatrixCursor {
+    // The maximal size of one encoded entry
+    private static final int MAX_ENTRY_SIZE = 18;
+
+    /** The input channel. */
+    private final ReadableByteChannel m_channel;
+    /** The read buffer. */
+    private final ByteBuffer m_buffer;
+    /** The number of entries declared in header or -1 if unknown. */
+    private final long m_count;
+    /** The entries encoding. */
+    private final MatrixWriter.Encoding m_encoding;
+    /** The number of entries read so far. */
+    private long m_read;
+
+    // The current entry
+    private int m_left;
+    private int m_right;
+    private double m_score;
+
+    /**
+     * Opens matrix file for reading. The compressed file is decompressed transparently.
+     *
+     * @param file the matrix file
+     * @throws IOException if file can not be opened or has wrong format
+     */
+    public MatrixReader(File file) throws IOException {
+        m_channel = CompressedIO.openChannel(file);
+        m_buffer = ByteBuffer.allocateDirect(64 * 1024);
+        m_buffer.limit(0);
+        try {
+            if (!ensure(MatrixWriter.HEADER_SIZE) || m_buffer.getInt() != MatrixWriter.MAGIC) {
+                throw new IOException("Not a matrix file: " + file);
+            }
+            int version = m_buffer.getInt();
+            if (version != MatrixWriter.VERSION) {
+                throw new IOException(String.format("Unsupported matrix file version: %d", version));
+            }
+            int encoding = m_buffer.getInt();
+            if (encoding < 0 || encoding >= MatrixWriter.Encoding.values().length) {
+                throw new IOException(String.format("Unsupported matrix entries encoding: %d", encoding));
+            }
+            m_encoding = MatrixWriter.Encoding.values()[encoding];
+            m_count = m_buffer.getLong();
+        } catch (IOException e) {
+            m_channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether provided file is matrix file written by {@link MatrixWriter}.
+     *
+     * @param file the file to check
+     * @return true if file starts with matrix magic number
+     * @throws IOException if file can not be read
+     */
+    public static boolean isMatrixFile(File file) throws IOException {
+        return CompressedIO.hasMagic(file, MatrixWriter.MAGIC);
+    }
+
+    /**
+     * @return the number of entries declared in header or -1 if unknown
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Moves to the next entry.
+     *
+     * @return true if entry was read or false if there are no more entries
+     * @throws IOException if read fails
+     */
+    public boolean next() throws IOException {
+        if (m_count >= 0 && m_read >= m_count) {
+            return false;
+        }
+        if (!ensure(MAX_ENTRY_SIZE) && !m_buffer.hasRemaining()) {
+            if (m_count >= 0) {
+                throw new IOException("Unexpected end of matrix file");
+            }
+            return false;
+        }
+        try {
+            switch (m_encoding) {
+                case PLAIN:
+                    m_left = m_buffer.getInt();
+                    m_right = m_buffer.getInt();
+                    m_score = m_buffer.getDouble();
+                    break;
+
+                case DELTA:
+                    getDeltas();
+                    m_score = m_buffer.getDouble();
+                    break;
+
+                default:
+                    getDeltas();
+                    m_score = (MatrixWriter.QUANTIZED_MAX - getVarint()) / (double) MatrixWriter.QUANTIZED_MAX;
+                    break;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of matrix file");
+        }
+        m_read++;
+        return true;
+    }
+
+    private void getDeltas() throws IOException {
+        int leftDelta = unzigzag(getVarint());
+        m_left += leftDelta;
+        if (leftDelta == 0 && m_read > 0) {
+            m_right += unzigzag(getVarint());
+        } else {
+            m_right = m_left + unzigzag(getVarint());
+        }
+    }
+
+    private int getVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = m_buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in matrix file");
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public int getLeft() {
+        return m_left;
+    }
+
+    public int getRight() {
+        return m_right;
+    }
+
+    public double getScore() {
+        return m_score;
+    }
+
+    /**
+     * Reads all remaining entries into primitive arrays.
+     *
+     * @return the matrix with all remaining entries
+     * @throws IOException if read fails
+     */
+    public PairMatrix readAll() throws IOException {
+        PairMatrix matrix = new PairMatrix(m_count > 0 ? (int) (m_count - m_read) : 1024);
+        while (next()) {
+            matrix.add(m_left, m_right, m_score);
+        }
+        return matrix;
+    }
+
+    // makes sure that buffer has at least specified number of bytes remaining
+    private boolean ensure(int bytes) throws IOException {
+        if (m_buffer.remaining() >= bytes) {
+            return true;
+        }
+        m_buffer.compact();
+        while (m_buffer.position() < bytes) {
+            if (m_channel.read(m_buffer) < 0) {
+                break;
+            }
+        }
+        m_buffer.flip();
+        return m_buffer.remaining() >= bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_channel.close();
+    }
+}
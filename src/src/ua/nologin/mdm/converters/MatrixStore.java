@@ -0,0 +1,334 @@
+package ua.nologin.mdm.converters;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The log structured store of similarity matrix. The store is a directory of immutable segments - matrix files
+ * with entries sorted by pair of IDs. New batches of pairs are appended as new segments with increasing sequence
+ * numbers, readers merge all segments on the fly and for pairs present in several segments the entry from the
+ * newest segment wins. The compaction merges runs of adjacent small segments into one larger segment, either on
+ * demand or periodically in background.
+ * <p>
+ * The pairs are never removed from the store, so it suits accumulating results of comparing new batches of
+ * records rather than full recomputation.
+ */
+public class MatrixStore implements Closeable {
+    /** The extension of segment files. */
+    public static final String SEGMENT_EXT = ".seg";
+    /** The extension of segment files being written. */
+    private static final String TMP_EXT = ".tmp";
+
+    /** The default size of segment file after which it is not compacted further. */
+    public static final long MAX_COMPACTED_SIZE = 256L * 1024 * 1024;
+    /** The default minimal number of adjacent small segments to be compacted. */
+    public static final int MIN_COMPACTED_SEGMENTS = 4;
+    /** The default period of background compaction in seconds. */
+    public static final long COMPACTION_PERIOD = 10;
+
+    /** The store directory. */
+    private final File m_directory;
+    /** The encoding of segments entries. */
+    private final MatrixWriter.Encoding m_encoding;
+    /** The segments files ordered by sequence number. */
+    private final TreeMap<Long, File> m_segments = new TreeMap<>();
+    /** The sequence numbers of segments being appended. */
+    private final TreeSet<Long> m_pending = new TreeSet<>();
+    /** The lock guarding segments list. */
+    private final ReentrantReadWriteLock m_lock = new ReentrantReadWriteLock();
+    /** The lock allowing only one compaction at a time. */
+    private final Object m_compactionLock = new Object();
+    /** The next segment sequence number. */
+    private long m_nextSequence;
+    /** The size of segment file after which it is not compacted further. */
+    private long m_maxCompactedSize = MAX_COMPACTED_SIZE;
+    /** The minimal number of adjacent small segments to be compacted. */
+    private int m_minCompactedSegments = MIN_COMPACTED_SEGMENTS;
+    /** The background compactor. */
+    private ScheduledExecutorService m_compactor;
+
+    /**
+     * Opens store in specified directory, creating directory if necessary.
+     *
+     * @param directory the store directory
+     * @param encoding  the encoding of new segments entries
+     * @throws IOException if directory can not be created or read
+     */
+    public MatrixStore(File directory, MatrixWriter.Encoding encoding) throws IOException {
+        m_directory = directory;
+        m_encoding = encoding;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create matrix store directory: " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list matrix store directory: " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_EXT)) {
+                // not completed segment
+                Files.deleteIfExists(file.toPath());
+            } else if (name.endsWith(SEGMENT_EXT)) {
+                try {
+                    long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXT.length()));
+                    m_segments.put(sequence, file);
+                    m_nextSequence = Math.max(m_nextSequence, sequence + 1);
+                } catch (NumberFormatException e) {
+                    System.err.printf("Ignoring unknown file in matrix store: %s\n", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether specified file is matrix store directory.
+     *
+     * @param file the file to check
+     * @return true if file is directory
+     */
+    public static boolean isStore(File file) {
+        return file.isDirectory();
+    }
+
+    /**
+     * Sets parameters of compaction.
+     *
+     * @param maxCompactedSize    the size of segment file after which it is not compacted further
+     * @param minCompactedSegments the minimal number of adjacent small segments to be compacted
+     */
+    public void setCompactionPolicy(long maxCompactedSize, int minCompactedSegments) {
+        m_maxCompactedSize = maxCompactedSize;
+        m_minCompactedSegments = Math.max(2, minCompactedSegments);
+    }
+
+    /**
+     * Appends batch of pairs as new segment. The batch will be sorted, for duplicated pairs the last added wins.
+     *
+     * @param batch the batch of pairs
+     * @throws IOException if failed to write segment
+     */
+    public void append(PairMatrix batch) throws IOException {
+        if (batch.size() == 0) {
+            return;
+        }
+        batch.sort();
+        long sequence;
+        m_lock.writeLock().lock();
+        try {
+            sequence = m_nextSequence++;
+            m_pending.add(sequence);
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+        File segment = null;
+        try {
+            File tmp = new File(m_directory, segmentName(sequence) + TMP_EXT);
+            try (MatrixWriter writer = new MatrixWriter(tmp, m_encoding)) {
+                int size = batch.size();
+                for (int i = 0; i < size; i++) {
+                    // keep the last of duplicated pairs
+                    if (i + 1 < size && batch.getKey(i) == batch.getKey(i + 1)) {
+                        continue;
+                    }
+                    writer.write(batch.getLeft(i), batch.getRight(i), batch.getScore(i));
+                }
+            }
+            segment = new File(m_directory, segmentName(sequence));
+            Files.move(tmp.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            m_lock.writeLock().lock();
+            try {
+                m_pending.remove(sequence);
+                if (segment != null) {
+                    m_segments.put(sequence, segment);
+                }
+            } finally {
+                m_lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Opens cursor over all pairs in the store merged from all current segments. The segments appended or
+     * compacted after cursor opened do not affect it.
+     *
+     * @return the cursor over sorted pairs
+     * @throws IOException if failed to open segments
+     */
+    public MatrixCursor openCursor() throws IOException {
+        List<MatrixReader> readers = new ArrayList<>();
+        m_lock.readLock().lock();
+        try {
+            for (File segment : m_segments.values()) {
+                readers.add(new MatrixReader(segment));
+            }
+        } catch (IOException e) {
+            for (MatrixReader reader : readers) {
+                reader.close();
+            }
+            throw e;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+        return new MergingMatrixCursor(readers);
+    }
+
+    /**
+     * @return the number of segments in the store
+     */
+    public int getSegmentsCount() {
+        m_lock.readLock().lock();
+        try {
+            return m_segments.size();
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges runs of adjacent segments smaller than compaction size limit into single segments. Only adjacent
+     * segments are merged, so the newer data keeps precedence over older. The merged segment replaces the newest
+     * segment of the run atomically and the rest of run is deleted after that.
+     *
+     * @return the number of segments removed by compaction
+     * @throws IOException if failed to write merged segment
+     */
+    public int compact() throws IOException {
+        synchronized (m_compactionLock) {
+            int removed = 0;
+            for (List<Map.Entry<Long, File>> run : findCompactionRuns()) {
+                mergeRun(run);
+                removed += run.size() - 1;
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Starts background compaction with specified period. The compactor stops when store is closed.
+     *
+     * @param period the period between compactions
+     * @param unit   the time unit of period
+     */
+    public synchronized void startCompactor(long period, TimeUnit unit) {
+        if (m_compactor != null) {
+            return;
+        }
+        m_compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "matrix-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.printf("Matrix store compaction failed: %s\n", e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops background compactor if started and waits for running compaction to complete.
+     *
+     * @throws IOException if interrupted while waiting for compactor
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (m_compactor != null) {
+            m_compactor.shutdown();
+            try {
+                m_compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for compactor", e);
+            }
+            m_compactor = null;
+        }
+    }
+
+    // finds runs of adjacent small segments
+    private List<List<Map.Entry<Long, File>>> findCompactionRuns() {
+        List<List<Map.Entry<Long, File>>> runs = new ArrayList<>();
+        List<Map.Entry<Long, File>> run = new ArrayList<>();
+        m_lock.readLock().lock();
+        try {
+            // segments after the pending one can not be merged with segments before it
+            Map<Long, File> segments = m_pending.isEmpty() ? m_segments : m_segments.headMap(m_pending.first());
+            for (Map.Entry<Long, File> entry : segments.entrySet()) {
+                if (entry.getValue().length() < m_maxCompactedSize) {
+                    // copy entry, tree map nodes may be reused on removal
+                    run.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                    continue;
+                }
+                if (run.size() >= m_minCompactedSegments) {
+                    runs.add(run);
+                }
+                run = new ArrayList<>();
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+        if (run.size() >= m_minCompactedSegments) {
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    private void mergeRun(List<Map.Entry<Long, File>> run) throws IOException {
+        Map.Entry<Long, File> newest = run.get(run.size() - 1);
+        File tmp = new File(m_directory, segmentName(newest.getKey()) + TMP_EXT);
+
+        List<MatrixReader> readers = new ArrayList<>(run.size());
+        try {
+            for (Map.Entry<Long, File> entry : run) {
+                readers.add(new MatrixReader(entry.getValue()));
+            }
+        } catch (IOException e) {
+            for (MatrixReader reader : readers) {
+                reader.close();
+            }
+            throw e;
+        }
+        try (MergingMatrixCursor cursor = new MergingMatrixCursor(readers);
+             MatrixWriter writer = new MatrixWriter(tmp, m_encoding)) {
+            while (cursor.next()) {
+                writer.write(cursor.getLeft(), cursor.getRight(), cursor.getScore());
+            }
+        }
+
+        m_lock.writeLock().lock();
+        try {
+            // the merged segment has all pairs of run with the newest values, so it safely replaces the newest one
+            Files.move(tmp.toPath(), newest.getValue().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (int i = 0; i < run.size() - 1; i++) {
+                Map.Entry<Long, File> entry = run.get(i);
+                m_segments.remove(entry.getKey());
+                Files.deleteIfExists(entry.getValue().toPath());
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    private static String segmentName(long sequence) {
+        return String.format("%016d%s", sequence, SEGMENT_EXT);
+    }
+}
@@ -0,0 +1,190 @@
+package ua.nologin.mdm.converters;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The writer of similarity matrix in compact binary format. The file starts with header:
+ * <pre>
+ * int  magic    - 'MDMX'
+ * int  version  - the format version
+ * int  encoding - the entries encoding
+ * long count    - the number of entries or -1 if unknown
+ * </pre>
+ * followed by entries written sequentially. All fixed size values are big-endian. The entries encodings are:
+ * <ul>
+ * <li>PLAIN - (int left, int right, double score) per entry</li>
+ * <li>DELTA - the left ID as zigzag varint delta from previous left ID, the right ID as zigzag varint delta from
+ * previous right ID if left ID is the same as previous or from left ID otherwise, and the double score</li>
+ * <li>DELTA_QUANTIZED - the same as DELTA, but score from [0, 1] range quantized to 16 bits and written as
+ * varint distance from 1.0</li>
+ * </ul>
+ * The delta encodings are most compact when entries are written in ascending order by left ID and then by right ID.
+ */
+public class MatrixWriter implements Closeable {
+    /** The magic number of matrix file. */
+    public static final int MAGIC = 0x4D444D58;
+    /** The current format version. */
+    public static final int VERSION = 1;
+    /** The maximal quantized score value. */
+    static final int QUANTIZED_MAX = 0xFFFF;
+    /** The size of header in bytes. */
+    public static final int HEADER_SIZE = 20;
+    /** The offset of entries count in header. */
+    static final int COUNT_OFFSET = 12;
+
+    /** The output channel. */
+    private final WritableByteChannel m_channel;
+    /** The write buffer. */
+    private final ByteBuffer m_buffer;
+    /** The entries encoding. */
+    private final Encoding m_encoding;
+    /** The number of entries written. */
+    private long m_count;
+    // The previous entry IDs for delta encoding
+    private int m_prevLeft;
+    private int m_prevRight;
+
+    /**
+     * The encodings of matrix entries.
+     */
+    public enum Encoding {
+        PLAIN,
+        DELTA,
+        DELTA_QUANTIZED
+    }
+
+    /**
+     * Creates writer of matrix into specified file with PLAIN encoding. The existing file will be overwritten.
+     *
+     * @param file the output file
+     * @throws IOException if file can not be created
+     */
+    public MatrixWriter(File file) throws IOException {
+        this(file, Encoding.PLAIN);
+    }
+
+    /**
+     * Creates writer of matrix into specified file. The existing file will be overwritten. The output is
+     * compressed if file extension denotes compression, see {@link CompressedIO}.
+     *
+     * @param file     the output file
+     * @param encoding the entries encoding
+     * @throws IOException if file can not be created
+     */
+    public MatrixWriter(File file, Encoding encoding) throws IOException {
+        m_channel = CompressedIO.openOutputChannel(file);
+        m_encoding = encoding;
+        m_buffer = ByteBuffer.allocateDirect(64 * 1024);
+        m_buffer.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putLong(-1);
+    }
+
+    /**
+     * Writes entry of matrix.
+     *
+     * @param left  the first record ID
+     * @param right the second record ID
+     * @param score the similarity score
+     * @throws IOException if write fails
+     */
+    public void write(int left, int right, double score) throws IOException {
+        if (m_buffer.remaining() < 20) {
+            flush();
+        }
+        switch (m_encoding) {
+            case PLAIN:
+                m_buffer.putInt(left).putInt(right).putDouble(score);
+                break;
+
+            case DELTA:
+                putDeltas(left, right);
+                m_buffer.putDouble(score);
+                break;
+
+            default:
+                if (!(score >= 0 && score <= 1)) {
+                    throw new IllegalArgumentException("Score can not be quantized: " + score);
+                }
+                putDeltas(left, right);
+                putVarint(QUANTIZED_MAX - (int) Math.round(score * QUANTIZED_MAX));
+                break;
+        }
+        m_count++;
+    }
+
+    private void putDeltas(int left, int right) {
+        putVarint(zigzag(left - m_prevLeft));
+        if (left == m_prevLeft && m_count > 0) {
+            putVarint(zigzag(right - m_prevRight));
+        } else {
+            putVarint(zigzag(right - left));
+        }
+        m_prevLeft = left;
+        m_prevRight = right;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            m_buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        m_buffer.put((byte) value);
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Writes all entries of matrix.
+     *
+     * @param matrix the matrix to write
+     * @throws IOException if write fails
+     */
+    public void write(PairMatrix matrix) throws IOException {
+        int size = matrix.size();
+        for (int i = 0; i < size; i++) {
+            write(matrix.getLeft(i), matrix.getRight(i), matrix.getScore(i));
+        }
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    private void flush() throws IOException {
+        m_buffer.flip();
+        while (m_buffer.hasRemaining()) {
+            m_channel.write(m_buffer);
+        }
+        m_buffer.clear();
+    }
+
+    /**
+     * Flushes remaining entries and stores the number of entries in header.
+     *
+     * @throws IOException if write fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (m_channel instanceof FileChannel) {
+                // the count is left unknown in compressed file
+                m_buffer.putLong(m_count).flip();
+                ((FileChannel) m_channel).write(m_buffer, COUNT_OFFSET);
+            }
+        } finally {
+            m_channel.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ua.nologin.mdm.converters;
+
+import ua.nologin.mdm.model.PairMatrix;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The cursor merging several sorted matrix cursors into one sorted sequence of entries. If the same pair of IDs
+ * present in several cursors, the entry from the cursor with greater index in provided list wins, so newer data
+ * should follow older.
+ */
+public class MergingMatrixCursor implements MatrixCursor {
+    // The merged cursors ordered by current key and by precedence
+    private final PriorityQueue<Head> m_heads;
+    // All merged cursors
+    private final List<? extends MatrixCursor> m_cursors;
+
+    // The current entry
+    private int m_left;
+    private int m_right;
+    private double m_score;
+
+    /**
+     * Creates merging cursor. Each of provided cursors should return entries in ascending order by left ID and then
+     * by right ID. The provided cursors will be closed along with this cursor.
+     *
+     * @param cursors the cursors to merge from older to newer
+     * @throws IOException if read fails
+     */
+    public MergingMatrixCursor(List<? extends MatrixCursor> cursors) throws IOException {
+        m_cursors = cursors;
+        m_heads = new PriorityQueue<>(Math.max(cursors.size(), 1));
+        for (int i = 0; i < cursors.size(); i++) {
+            Head head = new Head(cursors.get(i), i);
+            if (head.advance()) {
+                m_heads.add(head);
+            }
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        Head head = m_heads.poll();
+        if (head == null) {
+            return false;
+        }
+        long key = head.key;
+        m_left = head.cursor.getLeft();
+        m_right = head.cursor.getRight();
+        m_score = head.cursor.getScore();
+        if (head.advance()) {
+            m_heads.add(head);
+        }
+        // skip overridden entries with the same key
+        while (!m_heads.isEmpty() && m_heads.peek().key == key) {
+            head = m_heads.poll();
+            if (head.advance()) {
+                m_heads.add(head);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getLeft() {
+        return m_left;
+    }
+
+    @Override
+    public int getRight() {
+        return m_right;
+    }
+
+    @Override
+    public double getScore() {
+        return m_score;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (MatrixCursor cursor : m_cursors) {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // The current position of merged cursor
+    private static class Head implements Comparable<Head> {
+        private final MatrixCursor cursor;
+        private final int order;
+        private long key;
+
+        Head(MatrixCursor cursor, int order) {
+            this.cursor = cursor;
+            this.order = order;
+        }
+
+        boolean advance() throws IOException {
+            if (!cursor.next()) {
+                return false;
+            }
+            key = PairMatrix.pack(cursor.getLeft(), cursor.getRight());
+            return true;
+        }
+
+        @Override
+        public int compareTo(Head o) {
+            int res = Long.compare(key, o.key);
+            if (res == 0) {
+                // newer cursor first
+                res = Integer.compare(o.order, order);
+            }
+            return res;
+        }
+    }
+}
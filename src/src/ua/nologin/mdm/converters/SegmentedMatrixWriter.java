@@ -0,0 +1,186 @@
+package ua.nologin.mdm.converters;
+
+import ua.nologin.mdm.model.PairMatrix;
+import ua.nologin.mdm.model.PairSink;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The streaming writer of similarity matrix which accepts pairs from multiple threads as soon as comparators
+ * find them. Each thread collects pairs into its own buffer, full buffers are sorted and flushed to segment files
+ * next to the output file, so the memory stays bounded and already found pairs survive crash. On close all
+ * segments are merged into the output matrix file and removed.
+ * <p>
+ * When writer is created over {@link MatrixStore} the full buffers are appended to the store as new segments and
+ * nothing is merged on close, the store compaction takes care of it.
+ */
+public class SegmentedMatrixWriter implements PairSink, Closeable {
+    /** The default number of entries buffered by one thread. */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The output file. */
+    private final File m_outputFile;
+    /** The output store or null if writing into file. */
+    private final MatrixStore m_store;
+    /** The encoding of output file entries. */
+    private final MatrixWriter.Encoding m_encoding;
+    /** The number of entries per thread buffer. */
+    private final int m_bufferSize;
+    /** The per thread buffers. */
+    private final ThreadLocal<PairMatrix> m_buffers;
+    /** All allocated buffers. */
+    private final List<PairMatrix> m_allBuffers = new ArrayList<>();
+    /** The written segments files. */
+    private final List<File> m_segments = new ArrayList<>();
+    /** The counter of segments. */
+    private final AtomicInteger m_segmentsCounter = new AtomicInteger();
+    /** The number of entries written into output file or appended into store. */
+    private long m_count;
+
+    /**
+     * Creates writer.
+     *
+     * @param outputFile the output matrix file
+     * @param encoding   the encoding of output file entries
+     * @param bufferSize the number of entries buffered per thread before flushing to segment
+     */
+    public SegmentedMatrixWriter(File outputFile, MatrixWriter.Encoding encoding, int bufferSize) {
+        this(outputFile, null, encoding, bufferSize);
+    }
+
+    /**
+     * Creates writer appending segments into the store. The store is compacted and closed when writer closed.
+     *
+     * @param store      the output store
+     * @param bufferSize the number of entries buffered per thread before appending to store
+     */
+    public SegmentedMatrixWriter(MatrixStore store, int bufferSize) {
+        this(null, store, null, bufferSize);
+    }
+
+    private SegmentedMatrixWriter(File outputFile, MatrixStore store, MatrixWriter.Encoding encoding, int bufferSize) {
+        m_outputFile = outputFile;
+        m_store = store;
+        m_encoding = encoding;
+        m_bufferSize = bufferSize;
+        m_buffers = ThreadLocal.withInitial(() -> {
+            PairMatrix buffer = new PairMatrix(bufferSize);
+            synchronized (m_allBuffers) {
+                m_allBuffers.add(buffer);
+            }
+            return buffer;
+        });
+    }
+
+    /**
+     * Accepts pair of similar records.
+     *
+     * @param left  the first record ID
+     * @param right the second record ID
+     * @param score the similarity score
+     * @throws UncheckedIOException if failed to flush full buffer
+     */
+    @Override
+    public void put(int left, int right, double score) {
+        PairMatrix buffer = m_buffers.get();
+        buffer.add(left, right, score);
+        if (buffer.size() >= m_bufferSize) {
+            try {
+                flush(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries written into output file, available after close. When writing into store
+     * it is the number of appended entries, which may duplicate entries already in the store.
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    // sorts buffered entries and writes them into the new segment file
+    private void flush(PairMatrix buffer) throws IOException {
+        if (m_store != null) {
+            m_store.append(buffer);
+            synchronized (m_segments) {
+                m_count += buffer.size();
+            }
+            buffer.clear();
+            return;
+        }
+        buffer.sort();
+        File segment = new File(m_outputFile.getPath() + ".seg" + m_segmentsCounter.getAndIncrement());
+        try (MatrixWriter writer = new MatrixWriter(segment, MatrixWriter.Encoding.DELTA)) {
+            int size = buffer.size();
+            for (int i = 0; i < size; i++) {
+                // keep the last of duplicated pairs
+                if (i + 1 < size && buffer.getKey(i) == buffer.getKey(i + 1)) {
+                    continue;
+                }
+                writer.write(buffer.getLeft(i), buffer.getRight(i), buffer.getScore(i));
+            }
+        }
+        buffer.clear();
+        synchronized (m_segments) {
+            m_segments.add(segment);
+        }
+    }
+
+    /**
+     * Flushes all buffers and merges segments into output file. Must be called after all producing threads
+     * are complete.
+     *
+     * @throws IOException if failed to write output
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (m_allBuffers) {
+            for (PairMatrix buffer : m_allBuffers) {
+                if (buffer.size() > 0) {
+                    flush(buffer);
+                }
+            }
+            m_allBuffers.clear();
+        }
+        if (m_store != null) {
+            m_store.compact();
+            m_store.close();
+            return;
+        }
+
+        List<MatrixReader> readers = new ArrayList<>(m_segments.size());
+        try {
+            for (File segment : m_segments) {
+                readers.add(new MatrixReader(segment));
+            }
+        } catch (IOException e) {
+            for (MatrixReader reader : readers) {
+                reader.close();
+            }
+            throw e;
+        }
+        try (MergingMatrixCursor cursor = new MergingMatrixCursor(readers);
+             MatrixWriter writer = new MatrixWriter(m_outputFile, m_encoding)) {
+            while (cursor.next()) {
+                writer.write(cursor.getLeft(), cursor.getRight(), cursor.getScore());
+            }
+            m_count = writer.getCount();
+        }
+
+        for (File segment : m_segments) {
+            if (!segment.delete()) {
+                System.err.printf("Failed to delete segment file: %s\n", segment);
+            }
+        }
+        m_segments.clear();
+    }
+}
@@ -0,0 +1,343 @@
+package ua.nologin.mdm.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The similarity matrix stored as flat primitive arrays. Each entry is the pair of records IDs packed into one
+ * long key (left ID in high 32 bits, right ID in low 32 bits) along with similarity score. For non negative IDs
+ * the natural order of packed keys is the same as order by left ID and then by right ID.
+ */
+public class PairMatrix {
+    // The minimal size of range sorted by one task in parallel sort
+    private static final int PARALLEL_SORT_THRESHOLD = 64 * 1024;
+
+    // The packed pairs keys
+    private long[] keys;
+    // The similarity scores
+    private double[] scores;
+    // The number of entries
+    private int size;
+
+    public PairMatrix() {
+        this(16);
+    }
+
+    public PairMatrix(int capacity) {
+        this.keys = new long[Math.max(capacity, 1)];
+        this.scores = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Packs pair of records IDs into one long key.
+     *
+     * @param left  the first record ID
+     * @param right the second record ID
+     * @return the packed key
+     */
+    public static long pack(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key the packed key
+     * @return the first record ID of packed pair
+     */
+    public static int left(long key) {
+        return (int) (key >> 32);
+    }
+
+    /**
+     * @param key the packed key
+     * @return the second record ID of packed pair
+     */
+    public static int right(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Appends entry to the end of matrix.
+     *
+     * @param left  the first record ID
+     * @param right the second record ID
+     * @param score the similarity score
+     */
+    public void add(int left, int right, double score) {
+        add(pack(left, right), score);
+    }
+
+    /**
+     * Appends entry to the end of matrix.
+     *
+     * @param key   the packed pair key
+     * @param score the similarity score
+     */
+    public void add(long key, double score) {
+        if (size == keys.length) {
+            ensureCapacity(size + 1);
+        }
+        keys[size] = key;
+        scores[size] = score;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries keeping allocated capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public long getKey(int index) {
+        return keys[index];
+    }
+
+    public int getLeft(int index) {
+        return left(keys[index]);
+    }
+
+    public int getRight(int index) {
+        return right(keys[index]);
+    }
+
+    public double getScore(int index) {
+        return scores[index];
+    }
+
+    /**
+     * Appends all entries of other matrix to the end of this matrix.
+     *
+     * @param other the matrix to append
+     */
+    public void addAll(PairMatrix other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.keys, 0, keys, size, other.size);
+        System.arraycopy(other.scores, 0, scores, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Makes sure that matrix can hold specified number of entries without reallocation.
+     *
+     * @param capacity the required capacity
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            capacity = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+        }
+    }
+
+    /**
+     * Searches for entry with specified key in sorted range of entries.
+     *
+     * @param key  the packed pair key
+     * @param from the start index of range (inclusive)
+     * @param to   the end index of range (exclusive)
+     * @return the index of entry if found or negative value otherwise
+     */
+    public int binarySearch(long key, int from, int to) {
+        return Arrays.binarySearch(keys, from, to, key);
+    }
+
+    /**
+     * Searches for entry with specified key in sorted matrix.
+     *
+     * @param key the packed pair key
+     * @return the index of entry if found or negative value otherwise
+     */
+    public int indexOf(long key) {
+        return binarySearch(key, 0, size);
+    }
+
+    /**
+     * Merges sorted runs into one sorted matrix in linear time. The runs which follow each other in keys order
+     * are just concatenated, otherwise runs are merged with k-way merge. For equal keys the entries keep order of
+     * runs.
+     *
+     * @param runs the sorted matrices
+     * @return the merged sorted matrix
+     */
+    public static PairMatrix merge(List<PairMatrix> runs) {
+        int total = 0;
+        boolean ordered = true;
+        long lastKey = Long.MIN_VALUE;
+        for (PairMatrix run : runs) {
+            if (run.size == 0) {
+                continue;
+            }
+            total += run.size;
+            if (run.keys[0] < lastKey) {
+                ordered = false;
+            }
+            lastKey = run.keys[run.size - 1];
+        }
+        PairMatrix result = new PairMatrix(total);
+        if (ordered) {
+            for (PairMatrix run : runs) {
+                result.addAll(run);
+            }
+            return result;
+        }
+
+        // k-way merge by heap of runs indices ordered by current key and then by run index
+        int[] heap = new int[runs.size()];
+        int[] positions = new int[runs.size()];
+        int heapSize = 0;
+        for (int r = 0; r < runs.size(); r++) {
+            if (runs.get(r).size > 0) {
+                heap[heapSize++] = r;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, runs, positions);
+        }
+        while (heapSize > 0) {
+            int r = heap[0];
+            PairMatrix run = runs.get(r);
+            int pos = positions[r]++;
+            result.add(run.keys[pos], run.scores[pos]);
+            if (positions[r] == run.size) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, runs, positions);
+        }
+        return result;
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int i, List<PairMatrix> runs, int[] positions) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1, right = left + 1;
+            if (left < heapSize && lessRun(heap[left], heap[smallest], runs, positions)) {
+                smallest = left;
+            }
+            if (right < heapSize && lessRun(heap[right], heap[smallest], runs, positions)) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            int tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    private static boolean lessRun(int a, int b, List<PairMatrix> runs, int[] positions) {
+        long keyA = runs.get(a).keys[positions[a]];
+        long keyB = runs.get(b).keys[positions[b]];
+        return keyA < keyB || (keyA == keyB && a < b);
+    }
+
+    /**
+     * Sorts entries in ascending order of packed keys, i.e. by left ID and then by right ID.
+     */
+    public void sort() {
+        long[] tmpKeys = new long[size];
+        double[] tmpScores = new double[size];
+        mergeSort(keys, scores, tmpKeys, tmpScores, 0, size);
+    }
+
+    /**
+     * Sorts entries in ascending order of packed keys using Fork-Join threads for large matrices. The sort is
+     * stable as {@link #sort()}.
+     */
+    public void parallelSort() {
+        if (size < PARALLEL_SORT_THRESHOLD * 2) {
+            sort();
+            return;
+        }
+        long[] tmpKeys = new long[size];
+        double[] tmpScores = new double[size];
+        ForkJoinPool pool = new ForkJoinPool();
+        pool.invoke(new SortAction(keys, scores, tmpKeys, tmpScores, 0, size));
+        pool.shutdown();
+    }
+
+    // sorts range [from, to) of arrays using provided temporary arrays
+    private static void mergeSort(long[] keys, double[] scores, long[] tmpKeys, double[] tmpScores, int from, int to) {
+        int length = to - from;
+        if (length < 32) {
+            // insertion sort for small ranges
+            for (int i = from + 1; i < to; i++) {
+                long key = keys[i];
+                double score = scores[i];
+                int j = i - 1;
+                while (j >= from && keys[j] > key) {
+                    keys[j + 1] = keys[j];
+                    scores[j + 1] = scores[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                scores[j + 1] = score;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(keys, scores, tmpKeys, tmpScores, from, mid);
+        mergeSort(keys, scores, tmpKeys, tmpScores, mid, to);
+        merge(keys, scores, tmpKeys, tmpScores, from, mid, to);
+    }
+
+    // merges sorted ranges [from, mid) and [mid, to) of arrays using provided temporary arrays
+    private static void merge(long[] keys, double[] scores, long[] tmpKeys, double[] tmpScores, int from, int mid, int to) {
+        int length = to - from;
+        if (keys[mid - 1] <= keys[mid]) {
+            // already in order
+            return;
+        }
+        System.arraycopy(keys, from, tmpKeys, from, length);
+        System.arraycopy(scores, from, tmpScores, from, length);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && tmpKeys[i] <= tmpKeys[j])) {
+                keys[k] = tmpKeys[i];
+                scores[k] = tmpScores[i++];
+            } else {
+                keys[k] = tmpKeys[j];
+                scores[k] = tmpScores[j++];
+            }
+        }
+    }
+
+    // Task to sort range of arrays recursively using Fork-Join threads
+    private static class SortAction extends RecursiveAction {
+        private final long[] keys;
+        private final double[] scores;
+        private final long[] tmpKeys;
+        private final double[] tmpScores;
+        // The range to sort
+        private final int from;
+        private final int to;
+
+        SortAction(long[] keys, double[] scores, long[] tmpKeys, double[] tmpScores, int from, int to) {
+            this.keys = keys;
+            this.scores = scores;
+            this.tmpKeys = tmpKeys;
+            this.tmpScores = tmpScores;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_SORT_THRESHOLD) {
+                mergeSort(keys, scores, tmpKeys, tmpScores, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortAction(keys, scores, tmpKeys, tmpScores, from, mid),
+                    new SortAction(keys, scores, tmpKeys, tmpScores, mid, to));
+            merge(keys, scores, tmpKeys, tmpScores, from, mid, to);
+        }
+    }
+}
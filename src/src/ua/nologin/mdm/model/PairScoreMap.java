@@ -0,0 +1,221 @@
+package ua.nologin.mdm.model;
+
+import java.util.Arrays;
+
+/**
+ * The hash map of similarity scores keyed by pair of records IDs. The pairs are packed into long keys the same way
+ * as in {@link PairMatrix} and stored with scores in flat arrays using open addressing with linear probing, so
+ * there are no objects allocated per entry. The map is not thread safe, use {@link #synchronizedSink()} to fill
+ * it from multiple threads.
+ */
+public class PairScoreMap implements PairSink {
+    // The key marking free slot
+    private static final long FREE_KEY = Long.MIN_VALUE;
+    // The maximal fill ratio before growing
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // The packed pairs keys
+    private long[] keys;
+    // The similarity scores
+    private double[] scores;
+    // The mask of slot index
+    private int mask;
+    // The number of entries in slots
+    private int size;
+    // The number of entries before growing
+    private int threshold;
+    // Whether the free key itself is stored and its score
+    private boolean hasFreeKey;
+    private double freeKeyScore;
+
+    public PairScoreMap() {
+        this(16);
+    }
+
+    /**
+     * Creates map with capacity for expected number of entries.
+     *
+     * @param expected the expected number of entries
+     */
+    public PairScoreMap(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    private static int capacityFor(int expected) {
+        long needed = (long) Math.ceil(Math.max(expected, 2) / (double) LOAD_FACTOR);
+        int capacity = Integer.highestOneBit((int) Math.min(needed, 1 << 30));
+        return capacity < needed ? capacity << 1 : capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE_KEY);
+        scores = new double[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    // spreads bits of key to find start slot
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Puts score of pair replacing previous score if any.
+     *
+     * @param left  the first record ID
+     * @param right the second record ID
+     * @param score the similarity score
+     */
+    @Override
+    public void put(int left, int right, double score) {
+        put(PairMatrix.pack(left, right), score);
+    }
+
+    /**
+     * Puts score of pair replacing previous score if any.
+     *
+     * @param key   the packed pair key
+     * @param score the similarity score
+     */
+    public void put(long key, double score) {
+        if (key == FREE_KEY) {
+            hasFreeKey = true;
+            freeKeyScore = score;
+            return;
+        }
+        int i = slot(key, mask);
+        long k;
+        while ((k = keys[i]) != FREE_KEY) {
+            if (k == key) {
+                scores[i] = score;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        scores[i] = score;
+        if (++size > threshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Returns score of pair.
+     *
+     * @param left         the first record ID
+     * @param right        the second record ID
+     * @param defaultScore the score to return if pair is not in map
+     * @return the score of pair or default score
+     */
+    public double get(int left, int right, double defaultScore) {
+        return get(PairMatrix.pack(left, right), defaultScore);
+    }
+
+    /**
+     * Returns score of pair.
+     *
+     * @param key          the packed pair key
+     * @param defaultScore the score to return if pair is not in map
+     * @return the score of pair or default score
+     */
+    public double get(long key, double defaultScore) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyScore : defaultScore;
+        }
+        int i = slot(key, mask);
+        long k;
+        while ((k = keys[i]) != FREE_KEY) {
+            if (k == key) {
+                return scores[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return defaultScore;
+    }
+
+    /**
+     * @param key the packed pair key
+     * @return true if map has score of pair
+     */
+    public boolean containsKey(long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey;
+        }
+        int i = slot(key, mask);
+        long k;
+        while ((k = keys[i]) != FREE_KEY) {
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return hasFreeKey ? size + 1 : size;
+    }
+
+    /**
+     * @return the packed keys of all pairs in map in no particular order
+     */
+    public long[] keys() {
+        long[] result = new long[size()];
+        int n = 0;
+        for (long key : keys) {
+            if (key != FREE_KEY) {
+                result[n++] = key;
+            }
+        }
+        if (hasFreeKey) {
+            result[n] = FREE_KEY;
+        }
+        return result;
+    }
+
+    /**
+     * @return all entries of map as pair matrix in no particular order
+     */
+    public PairMatrix toPairMatrix() {
+        PairMatrix matrix = new PairMatrix(size());
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY) {
+                matrix.add(keys[i], scores[i]);
+            }
+        }
+        if (hasFreeKey) {
+            matrix.add(FREE_KEY, freeKeyScore);
+        }
+        return matrix;
+    }
+
+    /**
+     * @return the sink putting pairs into this map under lock of the map, to be used by multiple threads
+     */
+    public PairSink synchronizedSink() {
+        return (left, right, score) -> {
+            synchronized (this) {
+                put(left, right, score);
+            }
+        };
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        double[] oldScores = scores;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != FREE_KEY) {
+                int i = slot(key, mask);
+                while (keys[i] != FREE_KEY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                scores[i] = oldScores[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ua.nologin.mdm.model;
+
+/**
+ * The receiver of similar records pairs found by comparators. Implementations should be safe to use from multiple
+ * threads of Fork-Join pool simultaneously.
+ */
+public interface PairSink {
+
+    /**
+     * Accepts found pair of similar records.
+     *
+     * @param left  the first record ID
+     * @param right the second record ID
+     * @param score the similarity score
+     */
+    void put(int left, int right, double score);
+}
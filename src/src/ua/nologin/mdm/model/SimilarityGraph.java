@@ -0,0 +1,175 @@
+package ua.nologin.mdm.model;
+
+import java.util.Arrays;
+
+/**
+ * The sparse similarity graph over records IDs in compressed sparse row (CSR) layout. The neighbors of each record
+ * (the right IDs of pairs with this record as left ID) are stored contiguously in ascending order along with scores,
+ * and the offsets array indexed by record ID gives the range of neighbors of record in constant time. The records
+ * without neighbors take one offset entry only, so graph is compact for the dense records IDs used by data sets.
+ */
+public class SimilarityGraph {
+    // The ID of record at index 0 of offsets
+    private final int firstId;
+    // The start of neighbors of each record, the last entry is the number of edges
+    private final int[] offsets;
+    // The neighbors records IDs
+    private final int[] neighbors;
+    // The scores of edges
+    private final double[] scores;
+
+    private SimilarityGraph(int firstId, int[] offsets, int[] neighbors, double[] scores) {
+        this.firstId = firstId;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.scores = scores;
+    }
+
+    /**
+     * Builds graph from similarity matrix. The matrix is sorted in place. If matrix has several entries for the same
+     * pair the last of them is kept, the same way as if entries were put into map in order.
+     *
+     * @param matrix the similarity matrix with non negative records IDs
+     * @return the graph with edges from left to right records of pairs
+     */
+    public static SimilarityGraph build(PairMatrix matrix) {
+        matrix.parallelSort();
+        int size = matrix.size();
+        if (size == 0) {
+            return new SimilarityGraph(0, new int[1], new int[0], new double[0]);
+        }
+        int firstId = matrix.getLeft(0);
+        int vertices = matrix.getLeft(size - 1) - firstId + 1;
+        int[] offsets = new int[vertices + 1];
+        int[] neighbors = new int[size];
+        double[] scores = new double[size];
+        int edges = 0;
+        for (int i = 0; i < size; i++) {
+            long key = matrix.getKey(i);
+            if (i + 1 < size && matrix.getKey(i + 1) == key) {
+                // the later entry of the same pair wins
+                continue;
+            }
+            offsets[PairMatrix.left(key) - firstId + 1]++;
+            neighbors[edges] = PairMatrix.right(key);
+            scores[edges++] = matrix.getScore(i);
+        }
+        for (int v = 0; v < vertices; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        if (edges < size) {
+            neighbors = Arrays.copyOf(neighbors, edges);
+            scores = Arrays.copyOf(scores, edges);
+        }
+        return new SimilarityGraph(firstId, offsets, neighbors, scores);
+    }
+
+    /**
+     * Builds graph from map of similarity scores.
+     *
+     * @param matrix the map of scores with non negative records IDs
+     * @return the graph with edges from left to right records of pairs
+     */
+    public static SimilarityGraph build(PairScoreMap matrix) {
+        return build(matrix.toPairMatrix());
+    }
+
+    /**
+     * Returns graph with each edge stored in both directions, so neighbors of record are all records similar
+     * to it regardless of order in pair. Such graph is the input for clustering of records.
+     *
+     * @return the undirected graph
+     */
+    public SimilarityGraph toUndirected() {
+        int edges = getEdgesCount();
+        PairMatrix matrix = new PairMatrix(edges * 2);
+        for (int v = 0; v < offsets.length - 1; v++) {
+            int id = firstId + v;
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                matrix.add(id, neighbors[e], scores[e]);
+                matrix.add(neighbors[e], id, scores[e]);
+            }
+        }
+        return build(matrix);
+    }
+
+    /**
+     * @return the ID of the first record which may have neighbors
+     */
+    public int getFirstId() {
+        return firstId;
+    }
+
+    /**
+     * @return the ID of the last record which may have neighbors
+     */
+    public int getLastId() {
+        return firstId + offsets.length - 2;
+    }
+
+    public int getEdgesCount() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Returns the start index of neighbors of record.
+     *
+     * @param id the record ID
+     * @return the index of the first neighbor of record
+     */
+    public int start(int id) {
+        return contains(id) ? offsets[id - firstId] : 0;
+    }
+
+    /**
+     * Returns the end index (exclusive) of neighbors of record.
+     *
+     * @param id the record ID
+     * @return the index after the last neighbor of record
+     */
+    public int end(int id) {
+        return contains(id) ? offsets[id - firstId + 1] : 0;
+    }
+
+    /**
+     * @param id the record ID
+     * @return the number of neighbors of record
+     */
+    public int degree(int id) {
+        return end(id) - start(id);
+    }
+
+    /**
+     * @param edge the index of edge
+     * @return the neighbor record ID of edge
+     */
+    public int getNeighbor(int edge) {
+        return neighbors[edge];
+    }
+
+    /**
+     * @param edge the index of edge
+     * @return the similarity score of edge
+     */
+    public double getScore(int edge) {
+        return scores[edge];
+    }
+
+    /**
+     * Returns score of pair.
+     *
+     * @param left         the first record ID
+     * @param right        the second record ID
+     * @param defaultScore the score to return if there is no such edge
+     * @return the score of pair or default score
+     */
+    public double getScore(int left, int right, double defaultScore) {
+        int edge = Arrays.binarySearch(neighbors, start(left), end(left), right);
+        return edge >= 0 ? scores[edge] : defaultScore;
+    }
+
+    // checks whether record is in range of offsets, the records out of range have no neighbors
+    private boolean contains(int id) {
+        return id >= firstId && id - firstId < offsets.length - 1;
+    }
+}
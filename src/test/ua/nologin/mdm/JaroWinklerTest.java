@@ -0,0 +1,193 @@
+package ua.nologin.mdm;
+
+import com.aliasi.spell.JaroWinklerDistance;
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link JaroWinkler} gives the same scores as LingPipe's {@link JaroWinklerDistance} over generated
+ * strings, and that threshold-aware variant returns the exact score whenever it reaches the threshold.
+ */
+public class JaroWinklerTest {
+    // The names to generate spelling variants from
+    private static final String[] NAMES = {"JAMES G. DAVIS", "STEVEN G. MILLAR", "MARIA F. SMITH", "KATHRYN SMITH",
+            "CATHY SMITH", "CATHERINE", "MARTHA", "MARHTA", "DWAYNE", "DUANE", "DIXON", "DICKSONX", "JONES",
+            "JOHNSON", "ABROMS", "ABRAMS", "A", "AB", "BA"};
+    // The thresholds used by comparators and the bounds of proximity
+    private static final double[] THRESHOLDS = {Double.NEGATIVE_INFINITY, 0.0, 0.5, 0.7, 0.85, 0.9, 0.96, 1.0};
+    // The number of generated strings
+    private static final int STRINGS = 400;
+
+    private static final List<String> strings = generate(new Random(20151018L));
+
+    @Test
+    public void testJaroProximity() {
+        checkProximity(JaroWinkler.JARO, JaroWinklerDistance.JARO_DISTANCE);
+    }
+
+    @Test
+    public void testJaroWinklerProximity() {
+        checkProximity(JaroWinkler.JARO_WINKLER, JaroWinklerDistance.JARO_WINKLER_DISTANCE);
+    }
+
+    @Test
+    public void testCustomParametersProximity() {
+        checkProximity(new JaroWinkler(0.5, 2), new JaroWinklerDistance(0.5, 2));
+        checkProximity(new JaroWinkler(0.0, 6), new JaroWinklerDistance(0.0, 6));
+    }
+
+    @Test
+    public void testJaroProximityAtLeast() {
+        checkProximityAtLeast(JaroWinkler.JARO, JaroWinklerDistance.JARO_DISTANCE);
+    }
+
+    @Test
+    public void testJaroWinklerProximityAtLeast() {
+        checkProximityAtLeast(JaroWinkler.JARO_WINKLER, JaroWinklerDistance.JARO_WINKLER_DISTANCE);
+    }
+
+    @Test
+    public void testEmptyStrings() {
+        for (JaroWinkler proximity : new JaroWinkler[]{JaroWinkler.JARO, JaroWinkler.JARO_WINKLER}) {
+            assertBits("empty | empty", 1.0, proximity.proximity("", ""));
+            assertBits("empty | A", 0.0, proximity.proximity("", "A"));
+            assertBits("A | empty", 0.0, proximity.proximity("A", ""));
+            assertBits("empty | empty at 1.0", 1.0, proximity.proximityAtLeast("", "", 1.0));
+            assertBits("empty | A at 0.0", 0.0, proximity.proximityAtLeast("", "A", 0.0));
+            assertTrue("empty | A at 0.5", proximity.proximityAtLeast("", "A", 0.5) < 0);
+            assertTrue("A | empty at 0.5", proximity.proximityAtLeast("A", "", 0.5) < 0);
+        }
+        assertBits("LingPipe empty | empty", JaroWinklerDistance.JARO_WINKLER_DISTANCE.proximity("", ""),
+                JaroWinkler.JARO_WINKLER.proximity("", ""));
+        assertBits("LingPipe empty | A", JaroWinklerDistance.JARO_WINKLER_DISTANCE.proximity("", "A"),
+                JaroWinkler.JARO_WINKLER.proximity("", "A"));
+        assertBits("LingPipe A | empty", JaroWinklerDistance.JARO_WINKLER_DISTANCE.proximity("A", ""),
+                JaroWinkler.JARO_WINKLER.proximity("A", ""));
+    }
+
+    @Test
+    public void testCharArrays() {
+        char[] first = new char[64];
+        char[] second = new char[64];
+        Arrays.fill(first, 'X');
+        Arrays.fill(second, 'Y');
+        for (int i = 0; i < strings.size(); i += 7) {
+            for (int j = 0; j < strings.size(); j += 5) {
+                String a = strings.get(i);
+                String b = strings.get(j);
+                // the characters beyond lengths are not compared
+                a.getChars(0, a.length(), first, 0);
+                b.getChars(0, b.length(), second, 0);
+                double expected = JaroWinkler.JARO_WINKLER.proximity(a, b);
+                assertBits(a + " | " + b, expected,
+                        JaroWinkler.JARO_WINKLER.proximity(first, a.length(), second, b.length()));
+                assertBits(a + " | " + b, expected,
+                        JaroWinkler.JARO_WINKLER.proximityAtLeast(first, a.length(), second, b.length(), expected));
+            }
+        }
+    }
+
+    // checks that proximity of all pairs of generated strings is bit-identical to the reference one
+    private static void checkProximity(JaroWinkler proximity, JaroWinklerDistance reference) {
+        for (String a : strings) {
+            for (String b : strings) {
+                assertBits(a + " | " + b, reference.proximity(a, b), proximity.proximity(a, b));
+            }
+        }
+    }
+
+    // checks that threshold-aware proximity of all pairs of generated strings gives the reference score whenever it
+    // reaches the threshold and negative value otherwise, including thresholds right at and around the score
+    private static void checkProximityAtLeast(JaroWinkler proximity, JaroWinklerDistance reference) {
+        for (String a : strings) {
+            for (String b : strings) {
+                double expected = reference.proximity(a, b);
+                for (double threshold : THRESHOLDS) {
+                    checkAtLeast(proximity, a, b, expected, threshold);
+                }
+                checkAtLeast(proximity, a, b, expected, expected);
+                checkAtLeast(proximity, a, b, expected, Math.nextUp(expected));
+                checkAtLeast(proximity, a, b, expected, Math.nextAfter(expected, Double.NEGATIVE_INFINITY));
+            }
+        }
+    }
+
+    private static void checkAtLeast(JaroWinkler proximity, String a, String b, double expected, double threshold) {
+        String message = a + " | " + b + " at " + threshold;
+        double actual = proximity.proximityAtLeast(a, b, threshold);
+        if (expected >= threshold) {
+            assertBits(message, expected, actual);
+        } else {
+            assertTrue(message, actual < 0);
+        }
+    }
+
+    private static void assertBits(String message, double expected, double actual) {
+        assertEquals(message, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    // returns the names, their spelling variants and random strings over small alphabet, the empty string included
+    private static List<String> generate(Random random) {
+        Set<String> result = new LinkedHashSet<>();
+        result.add("");
+        result.addAll(Arrays.asList(NAMES));
+        while (result.size() < STRINGS / 2) {
+            result.add(mutate(NAMES[random.nextInt(NAMES.length)], random));
+        }
+        // the small alphabet gives many matching and transposed characters
+        while (result.size() < STRINGS) {
+            char[] chars = new char[random.nextInt(13)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) ('A' + random.nextInt(4));
+            }
+            result.add(new String(chars));
+        }
+        return new ArrayList<>(result);
+    }
+
+    // returns the name with one to three random typos
+    private static String mutate(String name, Random random) {
+        StringBuilder buff = new StringBuilder(name);
+        int typos = 1 + random.nextInt(3);
+        for (int t = 0; t < typos && buff.length() > 0; t++) {
+            int i = random.nextInt(buff.length());
+            char c = (char) ('A' + random.nextInt(26));
+            switch (random.nextInt(5)) {
+                case 0:
+                    buff.deleteCharAt(i);
+                    break;
+                case 1:
+                    buff.insert(i, c);
+                    break;
+                case 2:
+                    buff.setCharAt(i, c);
+                    break;
+                case 3:
+                    if (i + 1 < buff.length()) {
+                        char next = buff.charAt(i + 1);
+                        buff.setCharAt(i + 1, buff.charAt(i));
+                        buff.setCharAt(i, next);
+                    }
+                    break;
+                default:
+                    buff.setLength(i);
+                    break;
+            }
+        }
+        return buff.toString();
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JaroWinklerTest.class);
+    }
+}